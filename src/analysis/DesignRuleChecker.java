@@ -0,0 +1,408 @@
+package analysis;
+
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import state.ConnectionNet;
+import state.SimulationState;
+
+/**
+ * Static design rule checks, run once over a board without simulating it.
+ *
+ * Everything here is decided from a RegionMap and one more labelling of
+ * the same non-solid cells, so it stays linear in what the board holds
+ * rather than in its area. The checks are conservative in the
+ * direction that makes a report trustworthy: an output is only called
+ * unreachable if no shuttle movement could ever connect it to an entry,
+ * and a short is only called guaranteed if it goes through cells no
+ * shuttle can ever occupy.
+ */
+public class DesignRuleChecker {
+	public enum Rule {
+		UNREACHABLE_OUTPUT,
+		SINGLE_POINT_NET,
+		STUCK_SHUTTLE,
+		OPEN_NARROW,
+		GUARANTEED_SHORT
+	}
+
+	public static class Violation {
+		private Rule rule;
+		private Point location;
+		private String message;
+
+		public Violation( Rule rule, Point location, String message ) {
+			this.rule = rule;
+			this.location = location;
+			this.message = message;
+		}
+
+		public Rule getRule( ) {
+			return rule;
+		}
+
+		public Point getLocation( ) {
+			return location;
+		}
+
+		public String getMessage( ) {
+			return message;
+		}
+
+		public String toString( ) {
+			return rule + " at " + location.x + "," + location.y + ": " + message;
+		}
+	}
+
+	private static final int NONE = RegionMap.NONE;
+
+	private SimulationState state;
+	private RegionMap regions;
+	private int width, height;
+
+	private boolean[] clusterHasEntry;
+	private boolean[] live;
+	private int numLive = 0;
+
+	private ArrayList<Violation> violations = new ArrayList<Violation>( );
+
+	public DesignRuleChecker( SimulationState state ) {
+		this( state, new RegionMap( state ) );
+	}
+
+	public DesignRuleChecker( SimulationState state, RegionMap regions ) {
+		this.state = state;
+		this.regions = regions;
+		this.width = state.getWidth( );
+		this.height = state.getHeight( );
+
+		findLiveCells( );
+		checkOutputs( );
+		checkNets( );
+		checkShuttles( );
+		checkNarrows( );
+		checkShorts( );
+	}
+
+	public ArrayList<Violation> getViolations( ) {
+		return violations;
+	}
+
+	public RegionMap getRegions( ) {
+		return regions;
+	}
+
+	/**
+	 * @return true if pressure can ever reach the cell at (x, y)
+	 */
+	public boolean isLive( int x, int y ) {
+		int index = regions.indexOf( x, y );
+		return index != NONE && live[index];
+	}
+
+	public int getNumLiveCells( ) {
+		return numLive;
+	}
+
+	public String getReport( ) {
+		StringBuilder report = new StringBuilder( );
+		report.append( violations.size( ) ).append( " design rule violations, " );
+		report.append( numLive ).append( " of " ).append( (long) width * height ).append( " cells live\n" );
+		for ( Violation violation : violations ) {
+			report.append( violation ).append( '\n' );
+		}
+		return report.toString( );
+	}
+
+
+	// a cluster is live if anything in it can start a fill
+	private void findLiveCells( ) {
+		int numCells = regions.getNumCells( );
+		clusterHasEntry = new boolean[regions.getNumClusters( )];
+		for ( int index = 0; index < numCells; index++ ) {
+			if ( isEntry( regions.cellOf( index ) ) ) {
+				clusterHasEntry[regions.getRegionCluster( regions.regionOf( index ) )] = true;
+			}
+		}
+
+		live = new boolean[numCells];
+		for ( int index = 0; index < numCells; index++ ) {
+			int cluster = clusterOf( index );
+			if ( cluster != NONE && clusterHasEntry[cluster] ) {
+				live[index] = true;
+				numLive++;
+			}
+		}
+	}
+
+	private void checkOutputs( ) {
+		int index = 0;
+		for ( Point output : state.getOutputs( ) ) {
+			if ( !isLive( output.x, output.y ) ) {
+				violations.add( new Violation( Rule.UNREACHABLE_OUTPUT, output,
+					"output " + index + " is not connected to any entry, whatever the shuttles do" ) );
+			}
+			index++;
+		}
+	}
+
+	private void checkNets( ) {
+		for ( ConnectionNet net : state.getNets( ) ) {
+			if ( net.getPoints( ).size( ) == 1 ) {
+				violations.add( new Violation( Rule.SINGLE_POINT_NET, net.getPoints( ).get( 0 ),
+					"net " + Integer.toHexString( net.getColour( ) & 0xFFFFFF ) + " has a single point" ) );
+			}
+		}
+	}
+
+	private void checkShuttles( ) {
+		int numBodies = regions.getNumBodies( );
+		boolean[] hasBlock = new boolean[numBodies];
+		boolean[] hasRoom = new boolean[numBodies];
+
+		for ( int index = 0; index < regions.getNumCells( ); index++ ) {
+			int body = regions.bodyOf( index );
+			if ( body == NONE ) {
+				continue;
+			}
+			if ( regions.cellOf( index ) == SimulationState.BLOCK_SHUTTLE ) {
+				hasBlock[body] = true;
+			}
+			if ( isChannel( index, 1, 0 ) || isChannel( index, -1, 0 ) || isChannel( index, 0, 1 ) || isChannel( index, 0, -1 ) ) {
+				hasRoom[body] = true;
+			}
+		}
+
+		for ( int body = 0; body < numBodies; body++ ) {
+			String reason = null;
+			if ( !hasBlock[body] ) {
+				reason = "has no block cells for pressure to push";
+			} else if ( !hasRoom[body] ) {
+				reason = "has no channel to move into";
+			} else if ( !clusterHasEntry[regions.getBodyCluster( body )] ) {
+				reason = "is not reached by any pressure";
+			}
+			if ( reason != null ) {
+				violations.add( new Violation( Rule.STUCK_SHUTTLE, regions.getBodyCell( body ), "shuttle " + reason ) );
+			}
+		}
+	}
+
+	private void checkNarrows( ) {
+		for ( int index = 0; index < regions.getNumCells( ); index++ ) {
+			int cell = regions.cellOf( index );
+			int ends;
+			if ( cell == SimulationState.V_NARROW ) {
+				ends = opening( index, 0, -1 ) + opening( index, 0, 1 );
+			} else if ( cell == SimulationState.H_NARROW ) {
+				ends = opening( index, -1, 0 ) + opening( index, 1, 0 );
+			} else {
+				continue;
+			}
+
+			Point point = new Point( regions.xOf( index ), regions.yOf( index ) );
+			if ( state.getNetConnection( point ) != null ) {
+				ends++;
+			}
+			if ( ends < 2 ) {
+				violations.add( new Violation( Rule.OPEN_NARROW, point, "narrow connects nothing" ) );
+			}
+		}
+	}
+
+	/*
+	 * Labels the cells that can never change type and pass pressure both
+	 * ways: anything but channel a shuttle could move into, shuttles and
+	 * inputs. Two kinds of entry in one of these components always short.
+	 */
+	private void checkShorts( ) {
+		int numCells = regions.getNumCells( );
+		boolean[] fixed = findFixedCells( );
+
+		int[] parent = new int[numCells];
+		for ( int i = 0; i < numCells; i++ ) {
+			parent[i] = i;
+		}
+		for ( int index = 0; index < numCells; index++ ) {
+			if ( !fixed[index] ) {
+				continue;
+			}
+			int cell = regions.cellOf( index );
+			int right = regions.getNeighbour( index, 1, 0 );
+			if ( right != NONE && fixed[right] && cell != SimulationState.V_NARROW
+					&& regions.cellOf( right ) != SimulationState.V_NARROW ) {
+				union( parent, index, right );
+			}
+			int down = regions.getNeighbour( index, 0, 1 );
+			if ( down != NONE && fixed[down] && cell != SimulationState.H_NARROW
+					&& regions.cellOf( down ) != SimulationState.H_NARROW ) {
+				union( parent, index, down );
+			}
+		}
+		for ( ConnectionNet net : state.getNets( ) ) {
+			int first = NONE;
+			for ( Point point : net.getPoints( ) ) {
+				int index = regions.indexOf( point.x, point.y );
+				if ( index == NONE || !fixed[index] ) {
+					continue;
+				}
+				if ( first == NONE ) {
+					first = index;
+				} else {
+					union( parent, first, index );
+				}
+			}
+		}
+
+		// the first source, sink and vent seen in each component; entries are few
+		LinkedHashMap<Integer, int[]> entries = new LinkedHashMap<Integer, int[]>( );
+		for ( int index = 0; index < numCells; index++ ) {
+			if ( !fixed[index] ) {
+				continue;
+			}
+			int kind = entryKind( regions.cellOf( index ) );
+			if ( kind == NONE ) {
+				continue;
+			}
+			int root = find( parent, index );
+			int[] first = entries.get( root );
+			if ( first == null ) {
+				first = new int[] { NONE, NONE, NONE };
+				entries.put( root, first );
+			}
+			if ( first[kind] == NONE ) {
+				first[kind] = index;
+			}
+		}
+
+		for ( int[] first : entries.values( ) ) {
+			for ( int a = 0; a < 3; a++ ) {
+				for ( int b = a + 1; b < 3; b++ ) {
+					if ( first[a] != NONE && first[b] != NONE ) {
+						addShort( ENTRY_NAMES[a], first[a], ENTRY_NAMES[b], first[b] );
+					}
+				}
+			}
+		}
+	}
+
+	private static final String[] ENTRY_NAMES = { "source", "sink", "vent" };
+
+	private static int entryKind( int cell ) {
+		switch ( cell ) {
+		case SimulationState.SOURCE: return 0;
+		case SimulationState.SINK  : return 1;
+		case SimulationState.VENT  : return 2;
+		}
+		return NONE;
+	}
+
+	// channel a shuttle could reach is flooded out from every shuttle cell
+	private boolean[] findFixedCells( ) {
+		int numCells = regions.getNumCells( );
+		boolean[] reachable = new boolean[numCells];
+		int[] queue = new int[numCells];
+		int head = 0, tail = 0;
+
+		for ( int index = 0; index < numCells; index++ ) {
+			if ( RegionMap.isShuttle( regions.cellOf( index ) ) ) {
+				reachable[index] = true;
+				queue[tail++] = index;
+			}
+		}
+		while ( head < tail ) {
+			int index = queue[head++];
+			for ( int d = 0; d < 4; d++ ) {
+				int next = regions.getNeighbour( index, d == 0 ? 1 : d == 1 ? -1 : 0, d == 2 ? 1 : d == 3 ? -1 : 0 );
+				if ( next != NONE && !reachable[next] && regions.cellOf( next ) == SimulationState.CHANNEL ) {
+					reachable[next] = true;
+					queue[tail++] = next;
+				}
+			}
+		}
+
+		// solid cells are not indexed at all
+		boolean[] fixed = new boolean[numCells];
+		for ( int index = 0; index < numCells; index++ ) {
+			fixed[index] = !reachable[index] && regions.cellOf( index ) != SimulationState.INPUT;
+		}
+		for ( Point input : state.getInputs( ) ) {
+			// inputs toggle between source and sink
+			int index = regions.indexOf( input.x, input.y );
+			if ( index != NONE ) {
+				fixed[index] = false;
+			}
+		}
+		return fixed;
+	}
+
+	private void addShort( String firstKind, int first, String secondKind, int second ) {
+		Point from = new Point( regions.xOf( first ), regions.yOf( first ) );
+		Point to = new Point( regions.xOf( second ), regions.yOf( second ) );
+		violations.add( new Violation( Rule.GUARANTEED_SHORT, to, firstKind + " at " + from.x + "," + from.y
+			+ " and " + secondKind + " at " + to.x + "," + to.y + " are always connected" ) );
+	}
+
+	private int clusterOf( int index ) {
+		int region = regions.regionOf( index );
+		if ( region != NONE ) {
+			return regions.getRegionCluster( region );
+		}
+		int body = regions.bodyOf( index );
+		if ( body != NONE ) {
+			return regions.getBodyCluster( body );
+		}
+		return NONE;
+	}
+
+	private boolean isChannel( int index, int dx, int dy ) {
+		int neighbour = regions.getNeighbour( index, dx, dy );
+		return neighbour != NONE && regions.cellOf( neighbour ) == SimulationState.CHANNEL;
+	}
+
+	private int opening( int index, int dx, int dy ) {
+		return ( regions.getNeighbour( index, dx, dy ) != NONE ) ? 1 : 0;
+	}
+
+	private static boolean isEntry( int cell ) {
+		return cell == SimulationState.SOURCE || cell == SimulationState.SINK
+			|| cell == SimulationState.VENT || cell == SimulationState.INPUT;
+	}
+
+	private static int find( int[] parent, int index ) {
+		while ( parent[index] != index ) {
+			parent[index] = parent[parent[index]];
+			index = parent[index];
+		}
+		return index;
+	}
+
+	private static void union( int[] parent, int a, int b ) {
+		int rootA = find( parent, a );
+		int rootB = find( parent, b );
+		if ( rootA < rootB ) {
+			parent[rootB] = rootA;
+		} else if ( rootB < rootA ) {
+			parent[rootA] = rootB;
+		}
+	}
+
+
+	public static void main( String[] args ) throws IOException {
+		if ( args.length < 1 ) {
+			System.err.println( "usage: DesignRuleChecker board" );
+			System.exit( 1 );
+		}
+
+		SimulationState state = SimulationState.load( new File( args[0] ) );
+
+		long start = System.nanoTime( );
+		DesignRuleChecker checker = new DesignRuleChecker( state );
+		System.out.println( "checked " + state.getWidth( ) + "x" + state.getHeight( ) + " in "
+			+ ( System.nanoTime( ) - start ) / 1000000 + "ms" );
+		System.out.print( checker.getReport( ) );
+	}
+}
@@ -0,0 +1,451 @@
+package analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simulation.Simulator;
+import state.ShortCircuitException;
+import state.SimulationState;
+
+/**
+ * Checks two boards behave the same: that every sequence of input
+ * vectors, applied one at a time and each run until settled, leaves the
+ * same outputs on both.
+ *
+ * The search is breadth first over the pair of board configurations.
+ * Depth 1 is every input vector from the boards as loaded, depth k every
+ * sequence of k vectors. A pair reached before is not expanded again, so
+ * if the search runs out of new pairs before the depth bound the boards
+ * are proven equivalent for sequences of any length. Each level is
+ * spread over a thread pool, and the search stops at the first level
+ * where the boards diverge.
+ *
+ * Vectors both boards oscillate or both short under are not expanded
+ * further, since neither board's configuration is then meaningful (a
+ * short leaves the pressure fill half done), so a search that left any
+ * unexplored proves nothing beyond them; a vector only one of them
+ * settles under is a divergence.
+ */
+public class EquivalenceChecker {
+	public static final int MAX_SETTLE_STEPS = 256;
+	public static final int DEFAULT_DEPTH = 4;
+	public static final int DEFAULT_MAX_STATES = 1 << 20;
+
+	public static class Divergence {
+		private boolean[][] sequence;
+		private String reason;
+
+		public Divergence( boolean[][] sequence, String reason ) {
+			this.sequence = sequence;
+			this.reason = reason;
+		}
+
+		/**
+		 * @return the input vectors applied, the last one exposing the difference
+		 */
+		public boolean[][] getSequence( ) {
+			return sequence;
+		}
+
+		/**
+		 * @return the step (index into the sequence) where the boards differ
+		 */
+		public int getStep( ) {
+			return sequence.length - 1;
+		}
+
+		public String getReason( ) {
+			return reason;
+		}
+
+		public String toString( ) {
+			StringBuilder text = new StringBuilder( "step " + getStep( ) + ", inputs" );
+			for ( boolean[] vector : sequence ) {
+				text.append( ' ' ).append( bits( vector ) );
+			}
+			return text.append( ": " ).append( reason ).toString( );
+		}
+	}
+
+	// a pair of configurations, and how the search reached it
+	private static class Node {
+		SimulationState first, second;
+		Node parent;
+		boolean[] vector;
+		int depth;
+	}
+
+	// how one board ended up after a vector
+	private static final int SETTLED = 0;
+	private static final int OSCILLATES = 1;
+	private static final int SHORTS = 2;
+	private static final String[] OUTCOMES = { "settles", "never settles", "short circuits" };
+
+	private SimulationState first, second;
+	private int numInputs, numOutputs;
+	private int[] inputOrder, outputOrder;
+
+	private int depth = DEFAULT_DEPTH;
+	private int maxStates = DEFAULT_MAX_STATES;
+	private int numThreads = Runtime.getRuntime( ).availableProcessors( );
+
+	private Set<ByteBuffer> visited;
+	private AtomicLong vectorsApplied = new AtomicLong( );
+	private AtomicLong unresolved = new AtomicLong( );
+	private int depthReached = 0;
+	private boolean exhausted = false;
+	private boolean closed = false;
+	private boolean truncated = false;
+	private Divergence divergence = null;
+
+	public EquivalenceChecker( SimulationState first, SimulationState second ) {
+		this.first = new SimulationState( first );
+		this.second = new SimulationState( second );
+		this.numInputs = first.getInputs( ).size( );
+		this.numOutputs = first.getOutputs( ).size( );
+
+		if ( second.getInputs( ).size( ) != numInputs || second.getOutputs( ).size( ) != numOutputs ) {
+			throw new IllegalArgumentException( "boards have " + numInputs + "/" + numOutputs + " and "
+				+ second.getInputs( ).size( ) + "/" + second.getOutputs( ).size( ) + " inputs/outputs" );
+		}
+		if ( numInputs > 16 ) {
+			throw new IllegalArgumentException( "too many inputs to enumerate: " + numInputs );
+		}
+
+		inputOrder = identity( numInputs );
+		outputOrder = identity( numOutputs );
+	}
+
+	/**
+	 * @param order the second board's input driven by each of the first board's inputs
+	 */
+	public void setInputOrder( int[] order ) {
+		inputOrder = checkOrder( order, numInputs );
+	}
+
+	/**
+	 * @param order the second board's output compared with each of the first board's outputs
+	 */
+	public void setOutputOrder( int[] order ) {
+		outputOrder = checkOrder( order, numOutputs );
+	}
+
+	/**
+	 * @param depth the longest input sequence to try
+	 */
+	public void setDepth( int depth ) {
+		this.depth = depth;
+	}
+
+	/**
+	 * @param maxStates how many configuration pairs to remember before giving up
+	 */
+	public void setMaxStates( int maxStates ) {
+		this.maxStates = maxStates;
+	}
+
+	public void setThreads( int numThreads ) {
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	/**
+	 * Runs the search.
+	 * @return the first divergence found, or null if there was none
+	 */
+	public Divergence check( ) throws InterruptedException {
+		visited = Collections.newSetFromMap( new ConcurrentHashMap<ByteBuffer, Boolean>( ) );
+
+		Node root = new Node( );
+		root.first = first;
+		root.second = second;
+		visited.add( key( root ) );
+
+		List<Node> frontier = new ArrayList<Node>( );
+		frontier.add( root );
+
+		ExecutorService pool = Executors.newFixedThreadPool( numThreads );
+		try {
+			while ( !frontier.isEmpty( ) && depthReached < depth && divergence == null ) {
+				frontier = expand( pool, frontier );
+				depthReached++;
+				if ( visited.size( ) >= maxStates ) {
+					truncated = true;
+					break;
+				}
+			}
+		} finally {
+			pool.shutdownNow( );
+		}
+
+		exhausted = frontier.isEmpty( ) && divergence == null && !truncated;
+		// a sequence that oscillates or shorts was never followed, so it proves nothing past it
+		closed = exhausted && unresolved.get( ) == 0;
+		return divergence;
+	}
+
+	/**
+	 * @return true if the search ran out of new configurations with no
+	 *         oscillating or shorting sequence left unexplored, which proves equivalence
+	 *         for sequences of any length
+	 */
+	public boolean isClosed( ) {
+		return closed;
+	}
+
+	public int getDepthReached( ) {
+		return depthReached;
+	}
+
+	public int getStatesVisited( ) {
+		return visited.size( );
+	}
+
+	public long getVectorsApplied( ) {
+		return vectorsApplied.get( );
+	}
+
+	public String getReport( ) {
+		StringBuilder report = new StringBuilder( );
+		report.append( visited.size( ) ).append( " configuration pairs, " );
+		report.append( vectorsApplied.get( ) ).append( " vectors applied, depth " ).append( depthReached ).append( '\n' );
+		if ( unresolved.get( ) > 0 ) {
+			report.append( unresolved.get( ) ).append( " sequences left unexplored where both boards never settle or both short\n" );
+		}
+		if ( divergence != null ) {
+			report.append( "DIFFERENT at " ).append( divergence ).append( '\n' );
+		} else if ( closed ) {
+			report.append( "equivalent for every input sequence\n" );
+		} else if ( exhausted ) {
+			report.append( "equivalent except for " ).append( unresolved.get( ) ).append( " unexplored oscillating or shorting sequences\n" );
+		} else if ( truncated ) {
+			report.append( "equivalent as far as searched; stopped at " ).append( maxStates ).append( " configurations\n" );
+		} else {
+			report.append( "equivalent for every sequence of up to " ).append( depth ).append( " vectors\n" );
+		}
+		return report.toString( );
+	}
+
+
+	// one level: every node of the frontier under every input vector
+	private List<Node> expand( ExecutorService pool, final List<Node> frontier ) throws InterruptedException {
+		final int numVectors = 1 << numInputs;
+		int numTasks = Math.min( frontier.size( ) * numVectors, numThreads * 4 );
+		// once one task diverges the others can stop at that point
+		final AtomicLong earliest = new AtomicLong( Long.MAX_VALUE );
+
+		ArrayList<Future<Object[]>> results = new ArrayList<Future<Object[]>>( );
+		for ( int t = 0; t < numTasks; t++ ) {
+			final int task = t;
+			final int stride = numTasks;
+			results.add( pool.submit( new Callable<Object[]>( ) {
+				public Object[] call( ) {
+					// tasks take every stride-th (node, vector), so work stays in order
+					ArrayList<Node> next = new ArrayList<Node>( );
+					long total = (long) frontier.size( ) * numVectors;
+					for ( long job = task; job < total && job < earliest.get( ); job += stride ) {
+						Node node = frontier.get( (int) ( job / numVectors ) );
+						Object result = apply( node, (int) ( job % numVectors ) );
+						if ( result instanceof Divergence ) {
+							long seen = earliest.get( );
+							while ( job < seen && !earliest.compareAndSet( seen, job ) ) {
+								seen = earliest.get( );
+							}
+							return new Object[] { next, result, job };
+						} else if ( result != null ) {
+							next.add( (Node) result );
+						}
+					}
+					return new Object[] { next, null, total };
+				}
+			} ) );
+		}
+
+		// keep the divergence earliest in search order, so the report is repeatable
+		ArrayList<Node> nextFrontier = new ArrayList<Node>( );
+		long firstJob = Long.MAX_VALUE;
+		for ( Future<Object[]> result : results ) {
+			Object[] taskResult;
+			try {
+				taskResult = result.get( );
+			} catch ( ExecutionException e ) {
+				throw new RuntimeException( e.getCause( ) );
+			}
+			@SuppressWarnings( "unchecked" )
+			ArrayList<Node> next = (ArrayList<Node>) taskResult[0];
+			nextFrontier.addAll( next );
+			if ( taskResult[1] != null && (Long) taskResult[2] < firstJob ) {
+				firstJob = (Long) taskResult[2];
+				divergence = (Divergence) taskResult[1];
+			}
+		}
+		return nextFrontier;
+	}
+
+	/*
+	 * Applies a vector to copies of a node's boards.
+	 * @return the new node, a Divergence, or null if there is nothing new to expand
+	 */
+	private Object apply( Node node, int vector ) {
+		boolean[] inputs = new boolean[numInputs];
+		boolean[] secondInputs = new boolean[numInputs];
+		for ( int i = 0; i < numInputs; i++ ) {
+			inputs[i] = ( ( vector >> i ) & 1 ) != 0;
+			secondInputs[inputOrder[i]] = inputs[i];
+		}
+
+		Simulator firstSim = new Simulator( new SimulationState( node.first ) );
+		Simulator secondSim = new Simulator( new SimulationState( node.second ) );
+		firstSim.setInputs( inputs );
+		secondSim.setInputs( secondInputs );
+		int firstOutcome = settle( firstSim );
+		int secondOutcome = settle( secondSim );
+		vectorsApplied.incrementAndGet( );
+
+		Node child = new Node( );
+		child.parent = node;
+		child.vector = inputs;
+		child.depth = node.depth + 1;
+
+		if ( firstOutcome != secondOutcome ) {
+			return new Divergence( sequence( child ), "the first board " + OUTCOMES[firstOutcome]
+				+ ", the second " + OUTCOMES[secondOutcome] );
+		}
+		if ( firstOutcome != SETTLED ) {
+			// the outputs would be read from a board that never finished the step
+			unresolved.incrementAndGet( );
+			return null;
+		}
+
+		boolean[] firstOutputs = firstSim.getOutputs( );
+		boolean[] secondOutputs = secondSim.getOutputs( );
+		for ( int o = 0; o < numOutputs; o++ ) {
+			if ( firstOutputs[o] != secondOutputs[outputOrder[o]] ) {
+				return new Divergence( sequence( child ), "out" + o + " is " + ( firstOutputs[o] ? 1 : 0 )
+					+ " on the first board, out" + outputOrder[o] + " is " + ( secondOutputs[outputOrder[o]] ? 1 : 0 )
+					+ " on the second" );
+			}
+		}
+
+		child.first = firstSim.getState( );
+		child.second = secondSim.getState( );
+		return visited.add( key( child ) ) ? child : null;
+	}
+
+	private static int settle( Simulator simulator ) {
+		try {
+			return ( simulator.runUntilSettled( MAX_SETTLE_STEPS ) >= 0 ) ? SETTLED : OSCILLATES;
+		} catch ( ShortCircuitException e ) {
+			return SHORTS;
+		}
+	}
+
+	// both boards' cells; pressures are recomputed every step so they are not state
+	private static ByteBuffer key( Node node ) {
+		SimulationState a = node.first, b = node.second;
+		byte[] cells = new byte[a.getWidth( ) * a.getHeight( ) + b.getWidth( ) * b.getHeight( )];
+		int i = 0;
+		for ( SimulationState board : new SimulationState[] { a, b } ) {
+			for ( int x = 0; x < board.getWidth( ); x++ ) {
+				for ( int y = 0; y < board.getHeight( ); y++ ) {
+					cells[i++] = (byte) board.getCell( x, y );
+				}
+			}
+		}
+		return ByteBuffer.wrap( cells );
+	}
+
+	private static boolean[][] sequence( Node node ) {
+		boolean[][] vectors = new boolean[node.depth][];
+		for ( Node n = node; n.parent != null; n = n.parent ) {
+			vectors[n.depth - 1] = n.vector;
+		}
+		return vectors;
+	}
+
+	private static int[] identity( int size ) {
+		int[] order = new int[size];
+		for ( int i = 0; i < size; i++ ) {
+			order[i] = i;
+		}
+		return order;
+	}
+
+	private static int[] checkOrder( int[] order, int size ) {
+		boolean[] seen = new boolean[size];
+		if ( order.length != size ) {
+			throw new IllegalArgumentException( "order has " + order.length + " entries, expected " + size );
+		}
+		for ( int index : order ) {
+			if ( index < 0 || index >= size || seen[index] ) {
+				throw new IllegalArgumentException( "order is not a permutation of 0.." + ( size - 1 ) );
+			}
+			seen[index] = true;
+		}
+		return order.clone( );
+	}
+
+	private static String bits( boolean[] values ) {
+		StringBuilder text = new StringBuilder( );
+		for ( boolean value : values ) {
+			text.append( value ? '1' : '0' );
+		}
+		return text.toString( );
+	}
+
+	private static int[] parseOrder( String list ) {
+		String[] items = list.split( "," );
+		int[] order = new int[items.length];
+		for ( int i = 0; i < items.length; i++ ) {
+			order[i] = Integer.parseInt( items[i].trim( ) );
+		}
+		return order;
+	}
+
+
+	/**
+	 * @param args two boards, then optionally "-depth n", "-threads n",
+	 *        "-inputs 1,0,..." and "-outputs 1,0,..." mapping the first
+	 *        board's inputs and outputs onto the second's
+	 */
+	public static void main( String[] args ) throws IOException, InterruptedException {
+		if ( args.length < 2 ) {
+			System.err.println( "usage: EquivalenceChecker first-board second-board [-depth n] [-threads n] [-inputs order] [-outputs order]" );
+			System.exit( 1 );
+		}
+
+		EquivalenceChecker checker = new EquivalenceChecker(
+			SimulationState.load( new File( args[0] ) ), SimulationState.load( new File( args[1] ) ) );
+		for ( int i = 2; i + 1 < args.length; i += 2 ) {
+			if ( args[i].equals( "-depth" ) ) {
+				checker.setDepth( Integer.parseInt( args[i + 1] ) );
+			} else if ( args[i].equals( "-threads" ) ) {
+				checker.setThreads( Integer.parseInt( args[i + 1] ) );
+			} else if ( args[i].equals( "-inputs" ) ) {
+				checker.setInputOrder( parseOrder( args[i + 1] ) );
+			} else if ( args[i].equals( "-outputs" ) ) {
+				checker.setOutputOrder( parseOrder( args[i + 1] ) );
+			} else {
+				System.err.println( "unknown option " + args[i] );
+				System.exit( 1 );
+			}
+		}
+
+		long start = System.nanoTime( );
+		Divergence divergence = checker.check( );
+		System.out.println( "checked in " + ( System.nanoTime( ) - start ) / 1000000 + "ms" );
+		System.out.print( checker.getReport( ) );
+		System.exit( divergence == null ? 0 : 2 );
+	}
+}
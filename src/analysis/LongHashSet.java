@@ -0,0 +1,115 @@
+package analysis;
+
+import java.util.Arrays;
+
+/**
+ * A set of longs in one open-addressed array, numbering each value in
+ * the order it was added. Each slot is a long and an int, and the table
+ * is kept between a quarter and half full, so a value costs 24 to 48
+ * bytes, against the 55 or so of a HashSet of boxed Longs, and nothing
+ * for the collector to trace.
+ */
+public class LongHashSet {
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] values;
+	private int[] indices;
+	private boolean hasZero = false;
+	private int zeroIndex;
+	private int size = 0;
+	private int mask;
+
+	public LongHashSet( ) {
+		this( 16 );
+	}
+
+	public LongHashSet( int expected ) {
+		int capacity = Integer.highestOneBit( Math.max( 16, (int) ( expected / LOAD_FACTOR ) ) - 1 ) << 1;
+		values = new long[capacity];
+		indices = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	public int size( ) {
+		return size;
+	}
+
+	public boolean contains( long value ) {
+		return indexOf( value ) >= 0;
+	}
+
+	/**
+	 * @return the number the value was given when added, or -1 if it is absent
+	 */
+	public int indexOf( long value ) {
+		if ( value == 0 ) {
+			// zero marks an empty slot, so it is kept aside
+			return hasZero ? zeroIndex : -1;
+		}
+		for ( int slot = slot( value ); values[slot] != 0; slot = ( slot + 1 ) & mask ) {
+			if ( values[slot] == value ) {
+				return indices[slot];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the value was not already in the set
+	 */
+	public boolean add( long value ) {
+		if ( value == 0 ) {
+			if ( hasZero ) {
+				return false;
+			}
+			hasZero = true;
+			zeroIndex = size++;
+			return true;
+		}
+
+		int slot = slot( value );
+		for ( ; values[slot] != 0; slot = ( slot + 1 ) & mask ) {
+			if ( values[slot] == value ) {
+				return false;
+			}
+		}
+		values[slot] = value;
+		indices[slot] = size++;
+
+		if ( size > values.length * LOAD_FACTOR ) {
+			grow( );
+		}
+		return true;
+	}
+
+	private int slot( long value ) {
+		// values may be hashes already, but spread them in case they are not
+		long mixed = value * 0x9E3779B97F4A7C15L;
+		return (int) ( mixed ^ ( mixed >>> 32 ) ) & mask;
+	}
+
+	private void grow( ) {
+		long[] oldValues = values;
+		int[] oldIndices = indices;
+		values = new long[oldValues.length * 2];
+		indices = new int[oldValues.length * 2];
+		mask = values.length - 1;
+
+		for ( int i = 0; i < oldValues.length; i++ ) {
+			if ( oldValues[i] != 0 ) {
+				int slot = slot( oldValues[i] );
+				while ( values[slot] != 0 ) {
+					slot = ( slot + 1 ) & mask;
+				}
+				values[slot] = oldValues[i];
+				indices[slot] = oldIndices[i];
+			}
+		}
+	}
+
+	public void clear( ) {
+		Arrays.fill( values, 0 );
+		hasZero = false;
+		size = 0;
+	}
+}
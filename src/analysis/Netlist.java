@@ -0,0 +1,136 @@
+package analysis;
+
+import java.util.ArrayList;
+
+/**
+ * A board abstracted to one lookup-table gate per output.
+ *
+ * A combinational gate's table is indexed by its input bits (its first
+ * input is bit 0). A sequential gate also feeds its own previous value
+ * back in as the top bit, which is enough for latches and other
+ * single-bit state.
+ */
+public class Netlist {
+
+	public static class Gate {
+		private int output;
+		private int[] inputs;
+		private boolean sequential;
+		private boolean[] table;
+		private boolean initial;
+
+		public Gate( int output, int[] inputs, boolean sequential, boolean[] table, boolean initial ) {
+			int entries = 1 << ( inputs.length + ( sequential ? 1 : 0 ) );
+			if ( table.length != entries ) {
+				throw new IllegalArgumentException( "table has " + table.length + " entries, expected " + entries );
+			}
+			this.output = output;
+			this.inputs = inputs.clone( );
+			this.sequential = sequential;
+			this.table = table.clone( );
+			this.initial = initial;
+		}
+
+		public int getOutput( ) {
+			return output;
+		}
+
+		public int[] getInputs( ) {
+			return inputs.clone( );
+		}
+
+		public boolean isSequential( ) {
+			return sequential;
+		}
+
+		public boolean lookup( int index ) {
+			return table[index];
+		}
+
+		public int getTableSize( ) {
+			return table.length;
+		}
+
+		public boolean getInitialValue( ) {
+			return initial;
+		}
+
+		/**
+		 * @return the gate as a sum of products, or the negation of one if shorter
+		 */
+		public String toExpression( ) {
+			int variables = inputs.length + ( sequential ? 1 : 0 );
+			int numTrue = 0;
+			for ( boolean entry : table ) {
+				if ( entry ) {
+					numTrue++;
+				}
+			}
+
+			if ( numTrue == 0 ) {
+				return "0";
+			} else if ( numTrue == table.length ) {
+				return "1";
+			}
+
+			boolean negate = numTrue > table.length / 2;
+			StringBuilder expression = new StringBuilder( );
+			for ( int index = 0; index < table.length; index++ ) {
+				if ( table[index] == negate ) {
+					continue;
+				}
+				if ( expression.length( ) > 0 ) {
+					expression.append( " | " );
+				}
+				expression.append( '(' );
+				for ( int v = 0; v < variables; v++ ) {
+					if ( v > 0 ) {
+						expression.append( " & " );
+					}
+					if ( ( ( index >> v ) & 1 ) == 0 ) {
+						expression.append( '!' );
+					}
+					expression.append( v < inputs.length ? "in" + inputs[v] : "out" + output + "'" );
+				}
+				expression.append( ')' );
+			}
+
+			return negate ? "!(" + expression + ")" : expression.toString( );
+		}
+	}
+
+	private int numInputs;
+	private int numOutputs;
+	private ArrayList<Gate> gates = new ArrayList<Gate>( );
+
+	public Netlist( int numInputs, int numOutputs ) {
+		this.numInputs = numInputs;
+		this.numOutputs = numOutputs;
+	}
+
+	public void addGate( Gate gate ) {
+		gates.add( gate );
+	}
+
+	public ArrayList<Gate> getGates( ) {
+		return gates;
+	}
+
+	public int getNumInputs( ) {
+		return numInputs;
+	}
+
+	public int getNumOutputs( ) {
+		return numOutputs;
+	}
+
+	public String describe( ) {
+		StringBuilder description = new StringBuilder( );
+		for ( Gate gate : gates ) {
+			description.append( "out" ).append( gate.getOutput( ) );
+			description.append( gate.isSequential( ) ? " <= " : " = " );
+			description.append( gate.toExpression( ) ).append( '\n' );
+		}
+		return description.toString( );
+	}
+}
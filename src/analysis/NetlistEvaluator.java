@@ -0,0 +1,76 @@
+package analysis;
+
+import java.util.ArrayList;
+
+/**
+ * Runs a Netlist: each evaluation is one table lookup per gate.
+ */
+public class NetlistEvaluator {
+	private Netlist.Gate[] gates;
+	private int[][] gateInputs;
+	private boolean[] inputs;
+	private boolean[] outputs;
+	private boolean[] known;
+
+	public NetlistEvaluator( Netlist netlist ) {
+		ArrayList<Netlist.Gate> gateList = netlist.getGates( );
+		this.gates = gateList.toArray( new Netlist.Gate[gateList.size( )] );
+		this.gateInputs = new int[gates.length][];
+		for ( int i = 0; i < gates.length; i++ ) {
+			gateInputs[i] = gates[i].getInputs( );
+		}
+
+		this.inputs = new boolean[netlist.getNumInputs( )];
+		this.outputs = new boolean[netlist.getNumOutputs( )];
+		this.known = new boolean[netlist.getNumOutputs( )];
+		for ( Netlist.Gate gate : gates ) {
+			known[gate.getOutput( )] = true;
+		}
+
+		reset( );
+	}
+
+	public void reset( ) {
+		for ( Netlist.Gate gate : gates ) {
+			outputs[gate.getOutput( )] = gate.getInitialValue( );
+		}
+	}
+
+	public void setInputs( boolean[] inputValues ) {
+		System.arraycopy( inputValues, 0, inputs, 0, inputs.length );
+	}
+
+	public void evaluate( ) {
+		for ( int g = 0; g < gates.length; g++ ) {
+			Netlist.Gate gate = gates[g];
+			int[] gateIn = gateInputs[g];
+
+			int index = 0;
+			for ( int i = 0; i < gateIn.length; i++ ) {
+				if ( inputs[gateIn[i]] ) {
+					index |= 1 << i;
+				}
+			}
+			if ( gate.isSequential( ) && outputs[gate.getOutput( )] ) {
+				index |= 1 << gateIn.length;
+			}
+
+			outputs[gate.getOutput( )] = gate.lookup( index );
+		}
+	}
+
+	public boolean getOutput( int output ) {
+		return outputs[output];
+	}
+
+	/**
+	 * @return whether the netlist has a gate for the output at all
+	 */
+	public boolean isKnown( int output ) {
+		return known[output];
+	}
+
+	public void readOutputs( boolean[] outputValues ) {
+		System.arraycopy( outputs, 0, outputValues, 0, outputs.length );
+	}
+}
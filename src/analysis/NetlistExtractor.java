@@ -0,0 +1,478 @@
+package analysis;
+
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import simulation.Simulator;
+import state.ShortCircuitException;
+import state.SimulationState;
+
+/**
+ * Abstracts a board into a Netlist of lookup-table gates.
+ *
+ * Structure comes from a RegionMap: an output can only depend on the
+ * inputs in its cluster (the regions and shuttle bodies joined to it).
+ * Behaviour comes from driving copies of the cell-level simulation over
+ * every vector of those inputs, in order, in every pair, and along a
+ * random walk. Outputs that read the same for a vector whatever came
+ * before become combinational gates; outputs that only also depend on
+ * their own previous value become sequential gates. Anything else, and
+ * anything that shorts, is reported as not abstracted. Vectors the board
+ * oscillates under, or never settles under, are listed in the report and
+ * hold the gate's value, so an output that is otherwise combinational
+ * becomes a gate on its own previous value for them.
+ */
+public class NetlistExtractor {
+	public static final int MAX_CONE_INPUTS = 12;
+	public static final int MAX_PAIR_INPUTS = 6;
+	public static final int MAX_SETTLE_STEPS = 256;
+
+	private SimulationState base;
+	private RegionMap regions;
+	private int numInputs;
+	private int numOutputs;
+
+	// why each output could not be abstracted, null if it was
+	private String[] failures;
+	// input vectors the board never settles under, per output
+	private String[] unstable;
+	// the first input vector the board settles under, which gates start from
+	private boolean[] resetInputs;
+	private Netlist netlist;
+
+	public NetlistExtractor( SimulationState state ) {
+		this.base = new SimulationState( state );
+		this.regions = new RegionMap( base );
+		this.numInputs = base.getInputs( ).size( );
+		this.numOutputs = base.getOutputs( ).size( );
+	}
+
+	public RegionMap getRegions( ) {
+		return regions;
+	}
+
+	public Netlist extract( ) {
+		netlist = new Netlist( numInputs, numOutputs );
+		failures = new String[numOutputs];
+		unstable = new String[numOutputs];
+
+		resetInputs = findResetInputs( );
+		if ( resetInputs == null ) {
+			for ( int o = 0; o < numOutputs; o++ ) {
+				failures[o] = "never settles from its initial state";
+			}
+			return netlist;
+		}
+
+		// outputs in the same cluster share their experiments
+		LinkedHashMap<Integer, ArrayList<Integer>> outputsByCluster = new LinkedHashMap<Integer, ArrayList<Integer>>( );
+		for ( int o = 0; o < numOutputs; o++ ) {
+			int cluster = clusterAt( base.getOutputs( ).get( o ) );
+			if ( !outputsByCluster.containsKey( cluster ) ) {
+				outputsByCluster.put( cluster, new ArrayList<Integer>( ) );
+			}
+			outputsByCluster.get( cluster ).add( o );
+		}
+
+		for ( int cluster : outputsByCluster.keySet( ) ) {
+			ArrayList<Integer> clusterOutputs = outputsByCluster.get( cluster );
+			int[] cone = coneInputs( cluster );
+
+			if ( cone.length > MAX_CONE_INPUTS ) {
+				fail( clusterOutputs, "depends on " + cone.length + " inputs, more than " + MAX_CONE_INPUTS );
+			} else {
+				deriveGates( cone, clusterOutputs );
+			}
+		}
+
+		return netlist;
+	}
+
+	/**
+	 * @return the reason the output was not abstracted, or null if it was
+	 */
+	public String getFailure( int output ) {
+		return failures[output];
+	}
+
+	/**
+	 * @return the inputs the netlist's initial values were taken under
+	 */
+	public boolean[] getResetInputs( ) {
+		return resetInputs.clone( );
+	}
+
+	public String getReport( ) {
+		StringBuilder report = new StringBuilder( );
+		int abstracted = netlist.getGates( ).size( );
+		report.append( abstracted ).append( " of " ).append( numOutputs ).append( " outputs abstracted, " );
+		report.append( regions.getNumRegions( ) ).append( " regions, " );
+		report.append( regions.getNumBodies( ) ).append( " shuttles, " );
+		report.append( regions.getNumClusters( ) ).append( " clusters\n" );
+		if ( resetInputs != null ) {
+			report.append( "reset with inputs " ).append( bits( resetInputs ) ).append( '\n' );
+		}
+		report.append( netlist.describe( ) );
+
+		boolean[] clusterAbstracted = new boolean[regions.getNumClusters( )];
+		boolean[] clusterFailed = new boolean[regions.getNumClusters( )];
+		for ( int o = 0; o < numOutputs; o++ ) {
+			int cluster = clusterAt( base.getOutputs( ).get( o ) );
+			if ( unstable[o] != null ) {
+				report.append( "out" ).append( o ).append( " oscillates under " ).append( unstable[o] ).append( '\n' );
+			}
+			if ( failures[o] != null ) {
+				report.append( "out" ).append( o ).append( " not abstracted: " ).append( failures[o] ).append( '\n' );
+				clusterFailed[cluster] = true;
+			} else {
+				clusterAbstracted[cluster] = true;
+			}
+		}
+
+		// regions are only abstracted as part of a cluster whose outputs all were
+		int[] clusterRegions = new int[regions.getNumClusters( )];
+		int[] clusterCells = new int[regions.getNumClusters( )];
+		int[] clusterFirst = new int[regions.getNumClusters( )];
+		Arrays.fill( clusterFirst, RegionMap.NONE );
+		for ( int r = 0; r < regions.getNumRegions( ); r++ ) {
+			int cluster = regions.getRegionCluster( r );
+			clusterRegions[cluster]++;
+			clusterCells[cluster] += regions.getRegionSize( r );
+			if ( clusterFirst[cluster] == RegionMap.NONE ) {
+				clusterFirst[cluster] = r;
+			}
+		}
+
+		for ( int c = 0; c < clusterRegions.length; c++ ) {
+			if ( clusterRegions[c] == 0 || ( clusterAbstracted[c] && !clusterFailed[c] ) ) {
+				continue;
+			}
+			Point where = regions.getRegionCell( clusterFirst[c] );
+			report.append( "regions not abstracted: " ).append( clusterRegions[c] );
+			report.append( " regions, " ).append( clusterCells[c] ).append( " cells from (" );
+			report.append( where.x ).append( ',' ).append( where.y ).append( "): " );
+			report.append( clusterFailed[c] ? "outputs could not be abstracted" : "drives no outputs" );
+			report.append( '\n' );
+		}
+
+		return report.toString( );
+	}
+
+	/**
+	 * Drives the cell-level simulation and the netlist with the same input
+	 * vectors and compares every abstracted output after each settles. A
+	 * vector the board does not settle under is skipped, and both sides are
+	 * reset since the board's state is then unknown.
+	 * @return a description of the first difference, or null if none
+	 */
+	public String crossCheck( Netlist netlist, int numVectors, long seed ) {
+		Simulator simulator = new Simulator( new SimulationState( base ) );
+		NetlistEvaluator evaluator = new NetlistEvaluator( netlist );
+		Random random = new Random( seed );
+
+		boolean[] inputs = new boolean[numInputs];
+		boolean[] expected = new boolean[numOutputs];
+		boolean[] actual = new boolean[numOutputs];
+
+		boolean fromReset = true;
+		for ( int v = 0; v < numVectors; v++ ) {
+			// start from the reset inputs, matching how the gates were initialised
+			for ( int i = 0; i < numInputs; i++ ) {
+				inputs[i] = fromReset ? resetInputs[i] : random.nextBoolean( );
+			}
+			fromReset = false;
+
+			simulator.setInputs( inputs );
+			try {
+				if ( simulator.runUntilSettled( MAX_SETTLE_STEPS ) < 0 ) {
+					simulator = new Simulator( new SimulationState( base ) );
+					evaluator.reset( );
+					fromReset = true;
+					continue;
+				}
+			} catch ( ShortCircuitException e ) {
+				return "vector " + v + " " + bits( inputs ) + ": " + e;
+			}
+			simulator.readOutputs( expected );
+
+			evaluator.setInputs( inputs );
+			evaluator.evaluate( );
+			evaluator.readOutputs( actual );
+
+			for ( int o = 0; o < numOutputs; o++ ) {
+				if ( evaluator.isKnown( o ) && expected[o] != actual[o] ) {
+					return "vector " + v + " " + bits( inputs ) + ": out" + o + " is " + ( expected[o] ? 1 : 0 )
+						+ " on the board but " + ( actual[o] ? 1 : 0 ) + " in the netlist";
+				}
+			}
+		}
+
+		return null;
+	}
+
+
+	// derivation
+
+	private int clusterAt( Point point ) {
+		int region = regions.regionAt( point.x, point.y );
+		return ( region == RegionMap.NONE ) ? RegionMap.NONE : regions.getRegionCluster( region );
+	}
+
+	private int[] coneInputs( int cluster ) {
+		int[] cone = new int[numInputs];
+		int size = 0;
+		for ( int i = 0; i < numInputs; i++ ) {
+			if ( cluster != RegionMap.NONE && clusterAt( base.getInputs( ).get( i ) ) == cluster ) {
+				cone[size++] = i;
+			}
+		}
+		return Arrays.copyOf( cone, size );
+	}
+
+	private void fail( ArrayList<Integer> outputs, String reason ) {
+		for ( int o : outputs ) {
+			failures[o] = reason;
+		}
+	}
+
+	private void deriveGates( int[] cone, ArrayList<Integer> outputs ) {
+		int numVectors = 1 << cone.length;
+		int numGateOutputs = outputs.size( );
+
+		// vectors are over the cone only; observed[g][vector * 2 + previous]: -1 unseen, else the output after settling
+		byte[][] observed = new byte[numGateOutputs][numVectors * 2];
+		byte[][] combinational = new byte[numGateOutputs][numVectors];
+		boolean[] sequential = new boolean[numGateOutputs];
+		boolean[] conflicted = new boolean[numGateOutputs];
+		for ( int g = 0; g < numGateOutputs; g++ ) {
+			Arrays.fill( observed[g], (byte) -1 );
+			Arrays.fill( combinational[g], (byte) -1 );
+		}
+
+		boolean[] oscillates = new boolean[numVectors];
+
+		try {
+			Simulator reset = new Simulator( new SimulationState( base ) );
+			reset.setInputs( resetInputs );
+			reset.runUntilSettled( MAX_SETTLE_STEPS );
+			boolean[] initial = reset.getOutputs( );
+
+			// every vector in order, starting over whenever the board will not settle
+			Simulator walk = copyOf( reset );
+			for ( int v = 0; v < numVectors; v++ ) {
+				if ( !observe( walk, cone, v, outputs, observed, combinational, sequential, conflicted ) ) {
+					oscillates[v] = true;
+					walk = copyOf( reset );
+				}
+			}
+
+			// every pair of vectors from reset
+			if ( cone.length <= MAX_PAIR_INPUTS ) {
+				for ( int u = 0; u < numVectors; u++ ) {
+					Simulator first = copyOf( reset );
+					if ( !applyVector( first, cone, u ) ) {
+						continue;
+					}
+					for ( int v = 0; v < numVectors; v++ ) {
+						if ( !observe( copyOf( first ), cone, v, outputs, observed, combinational, sequential, conflicted ) ) {
+							oscillates[v] = true;
+						}
+					}
+				}
+			}
+
+			// and a long random walk for deeper histories
+			Random random = new Random( 0x5EEDL );
+			walk = copyOf( reset );
+			for ( int i = 0; i < numVectors * 8; i++ ) {
+				int v = random.nextInt( numVectors );
+				if ( !observe( walk, cone, v, outputs, observed, combinational, sequential, conflicted ) ) {
+					oscillates[v] = true;
+					walk = copyOf( reset );
+				}
+			}
+
+			String unstableVectors = unstableVectors( cone, oscillates );
+			for ( int output : outputs ) {
+				unstable[output] = unstableVectors;
+			}
+
+			for ( int g = 0; g < numGateOutputs; g++ ) {
+				int output = outputs.get( g );
+				if ( !sequential[g] && !hasUnseen( combinational[g] ) ) {
+					boolean[] table = new boolean[numVectors];
+					for ( int v = 0; v < numVectors; v++ ) {
+						table[v] = combinational[g][v] == 1;
+					}
+					netlist.addGate( new Netlist.Gate( output, cone, false, table, initial[output] ) );
+				} else if ( !sequential[g] ) {
+					// vectors never seen settled hold the value, so the gate reads its own
+					boolean[] table = new boolean[numVectors * 2];
+					for ( int index = 0; index < table.length; index++ ) {
+						int v = index & ( numVectors - 1 );
+						int previous = index / numVectors;
+						table[index] = ( combinational[g][v] == -1 ) ? previous == 1 : combinational[g][v] == 1;
+					}
+					netlist.addGate( new Netlist.Gate( output, cone, true, table, initial[output] ) );
+				} else if ( !conflicted[g] ) {
+					// histories never seen hold their value
+					boolean[] table = new boolean[numVectors * 2];
+					for ( int index = 0; index < table.length; index++ ) {
+						int v = index & ( numVectors - 1 );
+						int previous = index / numVectors;
+						byte seen = observed[g][v * 2 + previous];
+						table[index] = ( seen == -1 ) ? previous == 1 : seen == 1;
+					}
+					netlist.addGate( new Netlist.Gate( output, cone, true, table, initial[output] ) );
+				} else {
+					failures[output] = "holds more state than its own previous value";
+				}
+			}
+		} catch ( ShortCircuitException e ) {
+			fail( outputs, e.toString( ) );
+		}
+	}
+
+	private static boolean hasUnseen( byte[] values ) {
+		for ( byte value : values ) {
+			if ( value == -1 ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// returns false if the board did not settle, leaving nothing observed
+	private boolean observe( Simulator simulator, int[] cone, int vector, ArrayList<Integer> outputs,
+			byte[][] observed, byte[][] combinational, boolean[] sequential, boolean[] conflicted ) throws ShortCircuitException {
+		boolean[] before = simulator.getOutputs( );
+		if ( !applyVector( simulator, cone, vector ) ) {
+			return false;
+		}
+		boolean[] after = simulator.getOutputs( );
+
+		for ( int g = 0; g < outputs.size( ); g++ ) {
+			int output = outputs.get( g );
+			byte value = (byte) ( after[output] ? 1 : 0 );
+
+			int slot = vector * 2 + ( before[output] ? 1 : 0 );
+			if ( observed[g][slot] == -1 ) {
+				observed[g][slot] = value;
+			} else if ( observed[g][slot] != value ) {
+				conflicted[g] = true;
+			}
+
+			if ( combinational[g][vector] == -1 ) {
+				combinational[g][vector] = value;
+			} else if ( combinational[g][vector] != value ) {
+				sequential[g] = true;
+			}
+		}
+		return true;
+	}
+
+	// returns false if the board does not settle
+	private boolean applyVector( Simulator simulator, int[] cone, int vector ) throws ShortCircuitException {
+		simulator.setInputs( coneVector( cone, vector ) );
+		return simulator.runUntilSettled( MAX_SETTLE_STEPS ) >= 0;
+	}
+
+	// inputs outside the cone stay as they were at reset
+	private boolean[] coneVector( int[] cone, int vector ) {
+		boolean[] inputs = resetInputs.clone( );
+		for ( int i = 0; i < cone.length; i++ ) {
+			inputs[cone[i]] = ( ( vector >> i ) & 1 ) != 0;
+		}
+		return inputs;
+	}
+
+	private boolean[] findResetInputs( ) {
+		int numVectors = 1 << Math.min( numInputs, 10 );
+		for ( int v = 0; v < numVectors; v++ ) {
+			boolean[] inputs = new boolean[numInputs];
+			for ( int i = 0; i < numInputs && i < 10; i++ ) {
+				inputs[i] = ( ( v >> i ) & 1 ) != 0;
+			}
+
+			Simulator simulator = new Simulator( new SimulationState( base ) );
+			simulator.setInputs( inputs );
+			try {
+				if ( simulator.runUntilSettled( MAX_SETTLE_STEPS ) >= 0 ) {
+					return inputs;
+				}
+			} catch ( ShortCircuitException e ) {
+				// try the next vector
+			}
+		}
+		return null;
+	}
+
+	private String unstableVectors( int[] cone, boolean[] oscillates ) {
+		StringBuilder vectors = new StringBuilder( );
+		for ( int v = 0; v < oscillates.length; v++ ) {
+			if ( oscillates[v] ) {
+				if ( vectors.length( ) > 0 ) {
+					vectors.append( ' ' );
+				}
+				vectors.append( bits( coneVector( cone, v ) ) );
+			}
+		}
+		return ( vectors.length( ) > 0 ) ? vectors.toString( ) : null;
+	}
+
+	private static Simulator copyOf( Simulator simulator ) {
+		return new Simulator( new SimulationState( simulator.getState( ) ) );
+	}
+
+	private static String bits( boolean[] values ) {
+		StringBuilder text = new StringBuilder( );
+		for ( boolean value : values ) {
+			text.append( value ? '1' : '0' );
+		}
+		return text.toString( );
+	}
+
+
+	/**
+	 * @param args board (bitmap, .board or .layout), and optionally the number of random vectors to cross-check
+	 */
+	public static void main( String[] args ) throws IOException {
+		if ( args.length < 1 ) {
+			System.err.println( "usage: NetlistExtractor board [vectors]" );
+			System.exit( 1 );
+		}
+
+		SimulationState state = SimulationState.load( new File( args[0] ) );
+		int numVectors = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 1000;
+
+		long start = System.nanoTime( );
+		NetlistExtractor extractor = new NetlistExtractor( state );
+		Netlist netlist = extractor.extract( );
+		System.out.println( "extracted in " + ( System.nanoTime( ) - start ) / 1000000 + "ms" );
+		System.out.print( extractor.getReport( ) );
+
+		start = System.nanoTime( );
+		String mismatch = extractor.crossCheck( netlist, numVectors, 1 );
+		long cellNanos = System.nanoTime( ) - start;
+		System.out.println( ( mismatch == null ) ? "cross-check passed over " + numVectors + " vectors" : "cross-check FAILED: " + mismatch );
+
+		NetlistEvaluator evaluator = new NetlistEvaluator( netlist );
+		boolean[] inputs = new boolean[netlist.getNumInputs( )];
+		Random random = new Random( 1 );
+		start = System.nanoTime( );
+		for ( int v = 0; v < numVectors; v++ ) {
+			for ( int i = 0; i < inputs.length; i++ ) {
+				inputs[i] = random.nextBoolean( );
+			}
+			evaluator.setInputs( inputs );
+			evaluator.evaluate( );
+		}
+		long netlistNanos = Math.max( 1, System.nanoTime( ) - start );
+		System.out.println( "cell level " + cellNanos / 1000 + "us, netlist " + netlistNanos / 1000 + "us" );
+	}
+}
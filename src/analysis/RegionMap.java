@@ -0,0 +1,407 @@
+package analysis;
+
+import java.awt.Point;
+import java.util.Arrays;
+
+import state.ConnectionNet;
+import state.SimulationState;
+
+/**
+ * Connected-component labelling of a board in its current configuration.
+ *
+ * Regions are sets of cells pressure can spread between (through
+ * channels, narrows, thru-shuttles, entries and nets). Bodies are
+ * 4-connected groups of shuttle cells. Regions and bodies that touch are
+ * grouped into clusters: nothing in one cluster can affect another.
+ */
+public class RegionMap {
+	public static final int NONE = -1;
+
+	private int width, height;
+
+	/*
+	 * Only the non-solid cells are labelled, found by skipping solid runs,
+	 * so a large sparse board costs what it holds rather than its area.
+	 * They are indexed row by row: row y is indices rowFirst[y] to
+	 * rowFirst[y+1], in increasing x.
+	 */
+	private int[] rowFirst;
+	private int[] xs, ys;
+	private byte[] cells;
+
+	private int[] cellRegions;
+	private int[] cellBodies;
+	private int numRegions;
+	private int numBodies;
+
+	private int[] regionSizes;
+	private int[] regionCells;
+	private int[] bodySizes;
+	private int[] bodyCells;
+
+	private int[][] regionBodies;
+	private int[][] bodyRegions;
+
+	private int[] clusterOfRegion;
+	private int[] clusterOfBody;
+	private int numClusters;
+
+	public RegionMap( SimulationState state ) {
+		this.width = state.getWidth( );
+		this.height = state.getHeight( );
+
+		rowFirst = new int[height + 1];
+		long count = 0;
+		for ( int y = 0; y < height; y++ ) {
+			rowFirst[y] = (int) count;
+			for ( int x = state.nextOccupied( 0, y ); x < width; x = state.nextOccupied( x + 1, y ) ) {
+				if ( state.getCell( x, y ) != SimulationState.SOLID ) {
+					count++;
+				}
+			}
+			if ( count > Integer.MAX_VALUE - 8 ) {
+				throw new IllegalArgumentException( "too many cells to label on a " + width + "x" + height + " board" );
+			}
+		}
+		rowFirst[height] = (int) count;
+
+		int numCells = (int) count;
+		xs = new int[numCells];
+		ys = new int[numCells];
+		cells = new byte[numCells];
+		int index = 0;
+		for ( int y = 0; y < height; y++ ) {
+			for ( int x = state.nextOccupied( 0, y ); x < width; x = state.nextOccupied( x + 1, y ) ) {
+				int cell = state.getCell( x, y );
+				if ( cell != SimulationState.SOLID ) {
+					xs[index] = x;
+					ys[index] = y;
+					cells[index++] = (byte) cell;
+				}
+			}
+		}
+
+		int[] regionParent = new int[numCells];
+		int[] bodyParent = new int[numCells];
+		for ( int i = 0; i < numCells; i++ ) {
+			regionParent[i] = i;
+			bodyParent[i] = i;
+		}
+
+		// one linear pass, joining each cell to its right and lower neighbours
+		for ( index = 0; index < numCells; index++ ) {
+			int cell = cells[index];
+
+			int right = getNeighbour( index, 1, 0 );
+			if ( right != NONE ) {
+				if ( conducts( cell ) && conducts( cells[right] )
+						&& !( cell == SimulationState.V_NARROW && cells[right] == SimulationState.V_NARROW ) ) {
+					union( regionParent, index, right );
+				}
+				if ( isShuttle( cell ) && isShuttle( cells[right] ) ) {
+					union( bodyParent, index, right );
+				}
+			}
+
+			int down = getNeighbour( index, 0, 1 );
+			if ( down != NONE ) {
+				if ( conducts( cell ) && conducts( cells[down] )
+						&& !( cell == SimulationState.H_NARROW && cells[down] == SimulationState.H_NARROW ) ) {
+					union( regionParent, index, down );
+				}
+				if ( isShuttle( cell ) && isShuttle( cells[down] ) ) {
+					union( bodyParent, index, down );
+				}
+			}
+		}
+
+		// nets join their points wherever they are
+		for ( ConnectionNet net : state.getNets( ) ) {
+			int first = NONE;
+			for ( Point point : net.getPoints( ) ) {
+				index = indexOf( point.x, point.y );
+				if ( index == NONE || !conducts( cells[index] ) ) {
+					continue;
+				}
+				if ( first == NONE ) {
+					first = index;
+				} else {
+					union( regionParent, first, index );
+				}
+			}
+		}
+
+		// compact the roots into labels; a root is the first cell of its set
+		cellRegions = new int[numCells];
+		cellBodies = new int[numCells];
+		for ( index = 0; index < numCells; index++ ) {
+			int cell = cells[index];
+			cellRegions[index] = NONE;
+			cellBodies[index] = NONE;
+
+			if ( conducts( cell ) ) {
+				int root = find( regionParent, index );
+				cellRegions[index] = ( root == index ) ? numRegions++ : cellRegions[root];
+			}
+			if ( isShuttle( cell ) ) {
+				int root = find( bodyParent, index );
+				cellBodies[index] = ( root == index ) ? numBodies++ : cellBodies[root];
+			}
+		}
+
+		regionSizes = new int[numRegions];
+		regionCells = new int[numRegions];
+		bodySizes = new int[numBodies];
+		bodyCells = new int[numBodies];
+		for ( index = numCells - 1; index >= 0; index-- ) {
+			if ( cellRegions[index] != NONE ) {
+				regionSizes[cellRegions[index]]++;
+				regionCells[cellRegions[index]] = index;
+			}
+			if ( cellBodies[index] != NONE ) {
+				bodySizes[cellBodies[index]]++;
+				bodyCells[cellBodies[index]] = index;
+			}
+		}
+
+		buildAdjacency( );
+	}
+
+	public int getWidth( ) {
+		return width;
+	}
+
+	public int getHeight( ) {
+		return height;
+	}
+
+	public int getNumRegions( ) {
+		return numRegions;
+	}
+
+	public int getNumBodies( ) {
+		return numBodies;
+	}
+
+	public int getNumClusters( ) {
+		return numClusters;
+	}
+
+	/**
+	 * @return the number of non-solid cells, which are indexed from 0
+	 */
+	public int getNumCells( ) {
+		return cells.length;
+	}
+
+	/**
+	 * @return the index of the cell at (x, y), or NONE if it is solid or
+	 *         off the board
+	 */
+	public int indexOf( int x, int y ) {
+		if ( x < 0 || y < 0 || x >= width || y >= height ) {
+			return NONE;
+		}
+		int index = Arrays.binarySearch( xs, rowFirst[y], rowFirst[y + 1], x );
+		return ( index < 0 ) ? NONE : index;
+	}
+
+	/**
+	 * @return the index of the cell dx, dy away from the indexed one, or
+	 *         NONE if that is solid or off the board
+	 */
+	public int getNeighbour( int index, int dx, int dy ) {
+		if ( dy == 0 ) {
+			// along a row the neighbour, if any, is next to it in the index
+			int next = index + dx;
+			return ( next >= 0 && next < cells.length && ys[next] == ys[index] && xs[next] == xs[index] + dx ) ? next : NONE;
+		}
+		return indexOf( xs[index] + dx, ys[index] + dy );
+	}
+
+	public int xOf( int index ) {
+		return xs[index];
+	}
+
+	public int yOf( int index ) {
+		return ys[index];
+	}
+
+	public int cellOf( int index ) {
+		return cells[index];
+	}
+
+	public int regionOf( int index ) {
+		return cellRegions[index];
+	}
+
+	public int bodyOf( int index ) {
+		return cellBodies[index];
+	}
+
+	/**
+	 * @return the cell type at (x, y) when the map was made
+	 */
+	public int cellAt( int x, int y ) {
+		int index = indexOf( x, y );
+		return ( index == NONE ) ? SimulationState.SOLID : cells[index];
+	}
+
+	public int regionAt( int x, int y ) {
+		int index = indexOf( x, y );
+		return ( index == NONE ) ? NONE : cellRegions[index];
+	}
+
+	public int bodyAt( int x, int y ) {
+		int index = indexOf( x, y );
+		return ( index == NONE ) ? NONE : cellBodies[index];
+	}
+
+	public int getRegionSize( int region ) {
+		return regionSizes[region];
+	}
+
+	/**
+	 * @return the top-left-most cell of the region
+	 */
+	public Point getRegionCell( int region ) {
+		return new Point( xs[regionCells[region]], ys[regionCells[region]] );
+	}
+
+	public int getBodySize( int body ) {
+		return bodySizes[body];
+	}
+
+	public Point getBodyCell( int body ) {
+		return new Point( xs[bodyCells[body]], ys[bodyCells[body]] );
+	}
+
+	public int[] getRegionBodies( int region ) {
+		return regionBodies[region];
+	}
+
+	public int[] getBodyRegions( int body ) {
+		return bodyRegions[body];
+	}
+
+	public int getRegionCluster( int region ) {
+		return clusterOfRegion[region];
+	}
+
+	public int getBodyCluster( int body ) {
+		return clusterOfBody[body];
+	}
+
+	public static boolean conducts( int cell ) {
+		return cell != SimulationState.SOLID && cell != SimulationState.BLOCK_SHUTTLE;
+	}
+
+	public static boolean isShuttle( int cell ) {
+		return cell == SimulationState.BLOCK_SHUTTLE || cell == SimulationState.THRU_SHUTTLE;
+	}
+
+
+	private void buildAdjacency( ) {
+		// count then fill, so the lists are exact-sized without boxing
+		int[] bodyDegree = new int[numBodies];
+		long[] pairs = new long[16];
+		int numPairs = 0;
+
+		for ( int index = 0; index < cells.length; index++ ) {
+			int body = cellBodies[index];
+			if ( body == NONE ) {
+				continue;
+			}
+			for ( int d = 0; d < 5; d++ ) {
+				int neighbour = ( d == 0 ) ? index : getNeighbour( index,
+					d == 1 ? 1 : d == 2 ? -1 : 0, d == 3 ? 1 : d == 4 ? -1 : 0 );
+				if ( neighbour == NONE ) {
+					continue;
+				}
+				int region = cellRegions[neighbour];
+				if ( region != NONE ) {
+					if ( numPairs == pairs.length ) {
+						pairs = Arrays.copyOf( pairs, numPairs * 2 );
+					}
+					pairs[numPairs++] = ( (long) body << 32 ) | region;
+				}
+			}
+		}
+
+		Arrays.sort( pairs, 0, numPairs );
+		int unique = 0;
+		for ( int i = 0; i < numPairs; i++ ) {
+			if ( i == 0 || pairs[i] != pairs[i-1] ) {
+				pairs[unique++] = pairs[i];
+			}
+		}
+
+		int[] regionDegree = new int[numRegions];
+		for ( int i = 0; i < unique; i++ ) {
+			bodyDegree[(int) ( pairs[i] >>> 32 )]++;
+			regionDegree[(int) pairs[i]]++;
+		}
+
+		bodyRegions = new int[numBodies][];
+		regionBodies = new int[numRegions][];
+		for ( int b = 0; b < numBodies; b++ ) {
+			bodyRegions[b] = new int[bodyDegree[b]];
+			bodyDegree[b] = 0;
+		}
+		for ( int r = 0; r < numRegions; r++ ) {
+			regionBodies[r] = new int[regionDegree[r]];
+			regionDegree[r] = 0;
+		}
+
+		// clusters: regions joined through the bodies between them
+		int[] parent = new int[numRegions + numBodies];
+		for ( int i = 0; i < parent.length; i++ ) {
+			parent[i] = i;
+		}
+
+		for ( int i = 0; i < unique; i++ ) {
+			int body = (int) ( pairs[i] >>> 32 );
+			int region = (int) pairs[i];
+			bodyRegions[body][bodyDegree[body]++] = region;
+			regionBodies[region][regionDegree[region]++] = body;
+			union( parent, region, numRegions + body );
+		}
+
+		int[] labels = new int[parent.length];
+		Arrays.fill( labels, NONE );
+		clusterOfRegion = new int[numRegions];
+		clusterOfBody = new int[numBodies];
+		for ( int i = 0; i < parent.length; i++ ) {
+			int root = find( parent, i );
+			if ( labels[root] == NONE ) {
+				labels[root] = numClusters++;
+			}
+			if ( i < numRegions ) {
+				clusterOfRegion[i] = labels[root];
+			} else {
+				clusterOfBody[i - numRegions] = labels[root];
+			}
+		}
+	}
+
+	private static int find( int[] parent, int index ) {
+		while ( parent[index] != index ) {
+			parent[index] = parent[parent[index]];
+			index = parent[index];
+		}
+		return index;
+	}
+
+	private static void union( int[] parent, int a, int b ) {
+		int rootA = find( parent, a );
+		int rootB = find( parent, b );
+		if ( rootA != rootB ) {
+			// keep the lower index as root so labels come out in scan order
+			if ( rootA < rootB ) {
+				parent[rootB] = rootA;
+			} else {
+				parent[rootA] = rootB;
+			}
+		}
+	}
+}
@@ -0,0 +1,453 @@
+package analysis;
+
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import simulation.Simulator;
+import simulation.TruthTableSweep;
+import state.ShortCircuitException;
+import state.ShuttleHash;
+import state.SimulationState;
+
+/**
+ * Finds every configuration a sequential board can reach from the one it
+ * was loaded in, by applying every input vector, each run until settled,
+ * to every configuration reached.
+ *
+ * A configuration is where the shuttles are, identified by a ShuttleHash
+ * kept up to date as the board steps, and remembered in a LongHashSet
+ * rather than as a copy of the board; only the frontier's boards are
+ * held, for one level. With V input vectors a configuration costs
+ * roughly 16V + 100 bytes: 24 to 48 in the set, an int, a long and a
+ * reference per vector for its transitions, and the arrays' headers and
+ * its parent, plus a Point for each vector that shorts.
+ *
+ * The search is breadth first and level synchronous: each level's
+ * (configuration, vector) pairs are simulated across a thread pool, which
+ * only reads the set, then the new configurations are numbered in order
+ * between levels, so the numbering and the report are the same whatever
+ * the number of threads.
+ *
+ * Vectors are numbered as in the truth table, input 0 most significant.
+ */
+public class StateSpaceExplorer {
+	public static final int MAX_SETTLE_STEPS = 256;
+	public static final int DEFAULT_MAX_STATES = 1 << 16;
+
+	// transition targets that are not configurations
+	public static final int SHORTS = -1;
+	public static final int OSCILLATES = -2;
+	public static final int UNEXPLORED = -3;
+
+	private SimulationState initial;
+	private int numInputs, numOutputs, numVectors;
+	private int maxStates = DEFAULT_MAX_STATES;
+	private int numThreads = Runtime.getRuntime( ).availableProcessors( );
+
+	private LongHashSet visited;
+	// per configuration, in the order found
+	private ArrayList<int[]> next = new ArrayList<int[]>( );
+	private ArrayList<long[]> outputs = new ArrayList<long[]>( );
+	private ArrayList<Point[]> shorts = new ArrayList<Point[]>( );
+	private int[] parents = new int[16];
+	private int[] parentVectors = new int[16];
+
+	private int depthReached = 0;
+	private boolean truncated = false;
+
+	// one (configuration, vector) pair simulated by a worker
+	private static class Transition {
+		int from, vector;
+		int outcome;
+		long hash;
+		long outputs;
+		Point shortAt;
+		SimulationState state;
+	}
+
+	private static final int SETTLED = 0;
+
+	public StateSpaceExplorer( SimulationState state ) {
+		this.initial = new SimulationState( state );
+		this.numInputs = state.getInputs( ).size( );
+		this.numOutputs = state.getOutputs( ).size( );
+		this.numVectors = 1 << numInputs;
+
+		if ( numInputs > 16 ) {
+			throw new IllegalArgumentException( "too many inputs to enumerate: " + numInputs );
+		}
+		if ( numOutputs > 64 ) {
+			throw new IllegalArgumentException( "too many outputs to tabulate: " + numOutputs );
+		}
+	}
+
+	/**
+	 * @param maxStates how many configurations to find before giving up
+	 */
+	public void setMaxStates( int maxStates ) {
+		this.maxStates = maxStates;
+	}
+
+	public void setThreads( int numThreads ) {
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	/**
+	 * Runs the search.
+	 * @return the number of reachable configurations found
+	 */
+	public int explore( ) throws InterruptedException {
+		visited = new LongHashSet( );
+		next.clear( );
+		outputs.clear( );
+		shorts.clear( );
+		depthReached = 0;
+		truncated = false;
+
+		initial.setShuttleHash( new ShuttleHash( initial ) );
+		ArrayList<SimulationState> frontier = new ArrayList<SimulationState>( );
+		frontier.add( initial );
+		// configurations are numbered as found, so a frontier's are consecutive
+		int frontierFirst = add( initial.getShuttleHash( ).getValue( ), -1, -1 );
+
+		ExecutorService pool = Executors.newFixedThreadPool( numThreads );
+		try {
+			while ( !frontier.isEmpty( ) ) {
+				if ( visited.size( ) >= maxStates ) {
+					truncated = true;
+					break;
+				}
+
+				ArrayList<Transition> level = simulate( pool, frontier, frontierFirst );
+				depthReached++;
+
+				// only this thread writes the set, between levels
+				frontier = new ArrayList<SimulationState>( );
+				frontierFirst = visited.size( );
+				for ( Transition transition : level ) {
+					if ( transition.state != null && !visited.contains( transition.hash ) ) {
+						if ( visited.size( ) < maxStates ) {
+							add( transition.hash, transition.from, transition.vector );
+							frontier.add( transition.state );
+						} else {
+							truncated = true;
+						}
+					}
+					record( transition );
+				}
+			}
+		} finally {
+			pool.shutdownNow( );
+		}
+
+		return visited.size( );
+	}
+
+	public int getNumStates( ) {
+		return visited.size( );
+	}
+
+	public int getDepthReached( ) {
+		return depthReached;
+	}
+
+	/**
+	 * @return true if the search stopped at the state bound, so more
+	 *         configurations may be reachable
+	 */
+	public boolean isTruncated( ) {
+		return truncated;
+	}
+
+	/**
+	 * @return the configuration each vector leads to from a configuration,
+	 *         or SHORTS, OSCILLATES or UNEXPLORED
+	 */
+	public int getNext( int state, int vector ) {
+		return next.get( state )[vector];
+	}
+
+	/**
+	 * @return the outputs once settled under a vector from a configuration
+	 */
+	public boolean[] getOutputs( int state, int vector ) {
+		boolean[] values = new boolean[numOutputs];
+		long packed = outputs.get( state )[vector];
+		for ( int o = 0; o < numOutputs; o++ ) {
+			values[o] = ( ( packed >> o ) & 1 ) != 0;
+		}
+		return values;
+	}
+
+	/**
+	 * @return where a vector short circuits from a configuration, or null
+	 */
+	public Point getShortCircuit( int state, int vector ) {
+		return shorts.get( state )[vector];
+	}
+
+	/**
+	 * @return the shortest sequence of vectors from the loaded board to a configuration
+	 */
+	public int[] getPath( int state ) {
+		int length = 0;
+		for ( int s = state; parents[s] >= 0; s = parents[s] ) {
+			length++;
+		}
+		int[] path = new int[length];
+		for ( int s = state; parents[s] >= 0; s = parents[s] ) {
+			path[--length] = parentVectors[s];
+		}
+		return path;
+	}
+
+	/**
+	 * @param table whether to list every transition
+	 */
+	public String getReport( boolean table ) {
+		StringBuilder report = new StringBuilder( );
+		int numTransitions = 0, numShorting = 0, numOscillating = 0;
+		for ( int s = 0; s < next.size( ); s++ ) {
+			boolean shorting = false;
+			for ( int v = 0; v < numVectors; v++ ) {
+				int target = next.get( s )[v];
+				if ( target >= 0 ) {
+					numTransitions++;
+				} else if ( target == SHORTS ) {
+					shorting = true;
+				} else if ( target == OSCILLATES ) {
+					numOscillating++;
+				}
+			}
+			if ( shorting ) {
+				numShorting++;
+			}
+		}
+
+		report.append( visited.size( ) ).append( " reachable configurations" );
+		report.append( truncated ? " (stopped at the bound, there may be more)" : "" );
+		report.append( ", " ).append( numTransitions ).append( " settling transitions, depth " ).append( depthReached ).append( '\n' );
+		if ( numOscillating > 0 ) {
+			report.append( numOscillating ).append( " transitions never settle\n" );
+		}
+
+		if ( numShorting == 0 ) {
+			report.append( "no configuration short circuits\n" );
+		} else {
+			report.append( numShorting ).append( " configurations short circuit:\n" );
+			for ( int s = 0; s < next.size( ); s++ ) {
+				for ( int v = 0; v < numVectors; v++ ) {
+					if ( next.get( s )[v] == SHORTS ) {
+						Point at = shorts.get( s )[v];
+						report.append( "  s" ).append( s ).append( " under " ).append( vectorBits( v ) );
+						report.append( " at (" ).append( at.x ).append( ',' ).append( at.y ).append( "), reached by" );
+						report.append( path( s ) ).append( '\n' );
+					}
+				}
+			}
+		}
+
+		if ( table ) {
+			int column = Math.max( numInputs, Integer.toString( next.size( ) ).length( ) + 2 + numOutputs );
+			String cell = " %-" + column + "s |";
+			report.append( "state |" );
+			for ( int v = 0; v < numVectors; v++ ) {
+				report.append( String.format( cell, vectorBits( v ) ) );
+			}
+			report.append( '\n' );
+			for ( int s = 0; s < next.size( ); s++ ) {
+				report.append( String.format( "%5s |", "s" + s ) );
+				for ( int v = 0; v < numVectors; v++ ) {
+					int target = next.get( s )[v];
+					String entry;
+					if ( target == SHORTS ) {
+						entry = "short";
+					} else if ( target == OSCILLATES ) {
+						entry = "~";
+					} else if ( target == UNEXPLORED ) {
+						entry = "?";
+					} else {
+						entry = "s" + target + "/" + outputBits( outputs.get( s )[v] );
+					}
+					report.append( String.format( cell, entry ) );
+				}
+				report.append( '\n' );
+			}
+		}
+		return report.toString( );
+	}
+
+
+	// every vector from every configuration of the frontier
+	private ArrayList<Transition> simulate( ExecutorService pool, final ArrayList<SimulationState> frontier,
+			final int frontierFirst ) throws InterruptedException {
+		final long total = (long) frontier.size( ) * numVectors;
+		int numTasks = (int) Math.min( total, numThreads * 4 );
+
+		ArrayList<Future<ArrayList<Transition>>> results = new ArrayList<Future<ArrayList<Transition>>>( );
+		for ( int t = 0; t < numTasks; t++ ) {
+			final long first = total * t / numTasks;
+			final long last = total * ( t + 1 ) / numTasks;
+			results.add( pool.submit( new Callable<ArrayList<Transition>>( ) {
+				public ArrayList<Transition> call( ) {
+					ArrayList<Transition> done = new ArrayList<Transition>( );
+					for ( long job = first; job < last; job++ ) {
+						int index = (int) ( job / numVectors );
+						done.add( apply( frontier.get( index ), frontierFirst + index, (int) ( job % numVectors ) ) );
+					}
+					return done;
+				}
+			} ) );
+		}
+
+		// tasks cover consecutive jobs, so joining them in order keeps search order
+		ArrayList<Transition> level = new ArrayList<Transition>( );
+		for ( Future<ArrayList<Transition>> result : results ) {
+			try {
+				level.addAll( result.get( ) );
+			} catch ( ExecutionException e ) {
+				throw new RuntimeException( e.getCause( ) );
+			}
+		}
+		return level;
+	}
+
+	private Transition apply( SimulationState from, int fromID, int vector ) {
+		SimulationState state = new SimulationState( from );
+		ShuttleHash hash = new ShuttleHash( from.getShuttleHash( ) );
+		state.setShuttleHash( hash );
+
+		Simulator simulator = new Simulator( state );
+		simulator.setInputs( TruthTableSweep.inputVector( vector, numInputs ) );
+
+		Transition transition = new Transition( );
+		transition.from = fromID;
+		transition.vector = vector;
+		try {
+			if ( simulator.runUntilSettled( MAX_SETTLE_STEPS ) < 0 ) {
+				transition.outcome = OSCILLATES;
+				return transition;
+			}
+		} catch ( ShortCircuitException e ) {
+			transition.outcome = SHORTS;
+			transition.shortAt = e.getLocation( );
+			return transition;
+		}
+
+		transition.outcome = SETTLED;
+		transition.hash = hash.getValue( );
+		boolean[] values = simulator.getOutputs( );
+		for ( int o = 0; o < numOutputs; o++ ) {
+			if ( values[o] ) {
+				transition.outputs |= 1L << o;
+			}
+		}
+		// the set is only written between levels, so reading it here is safe
+		if ( !visited.contains( transition.hash ) ) {
+			transition.state = state;
+		}
+		return transition;
+	}
+
+	private void record( Transition transition ) {
+		int[] targets = next.get( transition.from );
+		if ( transition.outcome == SHORTS ) {
+			targets[transition.vector] = SHORTS;
+			shorts.get( transition.from )[transition.vector] = transition.shortAt;
+		} else if ( transition.outcome == OSCILLATES ) {
+			targets[transition.vector] = OSCILLATES;
+		} else {
+			// left unexplored if the bound stopped the target being added
+			int target = visited.indexOf( transition.hash );
+			targets[transition.vector] = ( target >= 0 ) ? target : UNEXPLORED;
+			outputs.get( transition.from )[transition.vector] = transition.outputs;
+		}
+	}
+
+	// numbers a new configuration
+	private int add( long hash, int parent, int vector ) {
+		visited.add( hash );
+		int[] targets = new int[numVectors];
+		Arrays.fill( targets, UNEXPLORED );
+		next.add( targets );
+		outputs.add( new long[numVectors] );
+		shorts.add( new Point[numVectors] );
+
+		int id = visited.size( ) - 1;
+		if ( id == parents.length ) {
+			parents = Arrays.copyOf( parents, id * 2 );
+			parentVectors = Arrays.copyOf( parentVectors, id * 2 );
+		}
+		parents[id] = parent;
+		parentVectors[id] = vector;
+		return id;
+	}
+
+	private String path( int state ) {
+		int[] path = getPath( state );
+		if ( path.length == 0 ) {
+			return " loading";
+		}
+		StringBuilder text = new StringBuilder( );
+		for ( int vector : path ) {
+			text.append( ' ' ).append( vectorBits( vector ) );
+		}
+		return text.toString( );
+	}
+
+	private String vectorBits( int vector ) {
+		StringBuilder text = new StringBuilder( );
+		for ( boolean value : TruthTableSweep.inputVector( vector, numInputs ) ) {
+			text.append( value ? '1' : '0' );
+		}
+		return text.toString( );
+	}
+
+	private String outputBits( long packed ) {
+		StringBuilder text = new StringBuilder( );
+		for ( int o = 0; o < numOutputs; o++ ) {
+			text.append( ( ( packed >> o ) & 1 ) != 0 ? '1' : '0' );
+		}
+		return text.toString( );
+	}
+
+
+	/**
+	 * @param args a board, then optionally "-states n" to bound the search,
+	 *        "-threads n", and "-table" to list every transition
+	 */
+	public static void main( String[] args ) throws IOException, InterruptedException {
+		if ( args.length < 1 ) {
+			System.err.println( "usage: StateSpaceExplorer board [-states n] [-threads n] [-table]" );
+			System.exit( 1 );
+		}
+
+		StateSpaceExplorer explorer = new StateSpaceExplorer( SimulationState.load( new File( args[0] ) ) );
+		boolean table = false;
+		for ( int i = 1; i < args.length; i++ ) {
+			if ( args[i].equals( "-table" ) ) {
+				table = true;
+			} else if ( args[i].equals( "-states" ) && i + 1 < args.length ) {
+				explorer.setMaxStates( Integer.parseInt( args[++i] ) );
+			} else if ( args[i].equals( "-threads" ) && i + 1 < args.length ) {
+				explorer.setThreads( Integer.parseInt( args[++i] ) );
+			} else {
+				System.err.println( "unknown option " + args[i] );
+				System.exit( 1 );
+			}
+		}
+
+		long start = System.nanoTime( );
+		explorer.explore( );
+		System.out.println( "explored in " + ( System.nanoTime( ) - start ) / 1000000 + "ms" );
+		System.out.print( explorer.getReport( table ) );
+	}
+}
@@ -0,0 +1,48 @@
+package server;
+
+/**
+ * Opcodes and status codes of the simulation server.
+ *
+ * Every request and response is a frame: a big-endian int giving the
+ * length of the rest of the frame, then an opcode (requests) or status
+ * (responses) byte, then the payload. Responses come back in request
+ * order, so a client can pipeline as many requests as it likes.
+ *
+ * Bit vectors are packed eight to a byte, bit i in byte i/8 at (1 << i%8).
+ * <pre>
+ * op                 request payload      OK response payload
+ * LOAD               utf-8 path           int width, height, inputs, outputs
+ * SET_INPUTS         input bits           -
+ * STEP               int steps            int simulated, int shorts, byte settled
+ * RUN_UNTIL_SETTLED  int max steps        int steps taken, -1 if still changing
+ * READ_OUTPUTS       -                    int count, output bits
+ * SET_PROBES         utf-8 probe file     int count
+ * READ_PROBES        -                    int count, one pressure byte each
+ * SNAPSHOT           - or int x, y,       int width, height, then a byte per
+ *                    width, height        cell row by row: cell << 2 | pressure
+ * </pre>
+ * A snapshot answers ERROR rather than exceed MAX_FRAME, so larger boards
+ * are read a region at a time.
+ * A request that fails answers ERROR with a utf-8 message, or SHORT_CIRCUIT
+ * with int x, y when running until settled ends on a persistent short.
+ */
+public class Protocol {
+	public static final byte LOAD              = 1;
+	public static final byte SET_INPUTS        = 2;
+	public static final byte STEP              = 3;
+	public static final byte RUN_UNTIL_SETTLED = 4;
+	public static final byte READ_OUTPUTS      = 5;
+	public static final byte SET_PROBES        = 6;
+	public static final byte READ_PROBES       = 7;
+	public static final byte SNAPSHOT          = 8;
+
+	public static final byte OK            = 0;
+	public static final byte ERROR         = 1;
+	public static final byte SHORT_CIRCUIT = 2;
+
+	// largest frame either side will accept
+	public static final int MAX_FRAME = 1 << 24;
+
+	private Protocol( ) {
+	}
+}
@@ -0,0 +1,89 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * A blocking client for SimulationServer. send() only buffers a request,
+ * so several can be pipelined before flush(); receive() then reads their
+ * responses back in the same order.
+ */
+public class SimulationClient {
+	private Socket socket;
+	private DataOutputStream out;
+	private DataInputStream in;
+
+	private byte lastStatus;
+
+	public SimulationClient( int port ) throws IOException {
+		socket = new Socket( InetAddress.getByName( "127.0.0.1" ), port );
+		socket.setTcpNoDelay( true );
+		out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream( ) ) );
+		in = new DataInputStream( new BufferedInputStream( socket.getInputStream( ) ) );
+	}
+
+	public void send( byte op, byte[] payload ) throws IOException {
+		out.writeInt( 1 + payload.length );
+		out.writeByte( op );
+		out.write( payload );
+	}
+
+	public void send( byte op ) throws IOException {
+		send( op, new byte[0] );
+	}
+
+	public void send( byte op, int argument ) throws IOException {
+		send( op, ByteBuffer.allocate( 4 ).putInt( argument ).array( ) );
+	}
+
+	public void send( byte op, String argument ) throws IOException {
+		send( op, argument.getBytes( SimulationSession.UTF8 ) );
+	}
+
+	public void flush( ) throws IOException {
+		out.flush( );
+	}
+
+	/**
+	 * Reads the next response.
+	 * @return its payload; the status is left in getLastStatus()
+	 */
+	public ByteBuffer receive( ) throws IOException {
+		int length = in.readInt( );
+		if ( length < 1 || length > Protocol.MAX_FRAME ) {
+			throw new IOException( "bad frame length " + length );
+		}
+		lastStatus = in.readByte( );
+		byte[] payload = new byte[length - 1];
+		in.readFully( payload );
+		return ByteBuffer.wrap( payload );
+	}
+
+	public byte getLastStatus( ) {
+		return lastStatus;
+	}
+
+	/**
+	 * Sends one request and waits for its response.
+	 * @throws IOException if the server answers with an error
+	 */
+	public ByteBuffer call( byte op, byte[] payload ) throws IOException {
+		send( op, payload );
+		flush( );
+		ByteBuffer response = receive( );
+		if ( lastStatus == Protocol.ERROR ) {
+			throw new IOException( SimulationSession.UTF8.decode( response ).toString( ) );
+		}
+		return response;
+	}
+
+	public void close( ) throws IOException {
+		socket.close( );
+	}
+}
@@ -0,0 +1,295 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves simulations to local clients over the binary Protocol, so test
+ * tooling can drive many boards from one long-lived JVM.
+ *
+ * A single thread multiplexes every connection with a Selector, and
+ * does nothing but I/O. Each connection gets its own SimulationSession;
+ * once frames have arrived, the connection stops being read and a worker
+ * executes every complete frame in order, then hands it back so the
+ * responses are written in one go. Pipelined requests cost one read and
+ * one write between them rather than a round trip each, and a long LOAD
+ * or RUN_UNTIL_SETTLED holds up only its own client.
+ */
+public class SimulationServer extends Thread {
+	public static final int DEFAULT_PORT = 7373;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private volatile boolean running = true;
+
+	private ExecutorService workers;
+	// connections whose frames a worker has finished with
+	private ConcurrentLinkedQueue<SelectionKey> finished = new ConcurrentLinkedQueue<SelectionKey>( );
+
+	private long numRequests = 0;
+	private long numConnections = 0;
+
+	// per connection
+	private static class Connection {
+		SimulationSession session = new SimulationSession( );
+		ByteBuffer in = ByteBuffer.allocate( BUFFER_SIZE );
+		ByteBuffer out = ByteBuffer.allocate( BUFFER_SIZE );
+		// handed to a worker, which may still be using the session
+		boolean busy = false;
+		// set by a worker that could not execute the frames
+		Throwable failure = null;
+	}
+
+	/**
+	 * Binds to the loopback interface only.
+	 * @param port the port to listen on, or 0 for any free port
+	 */
+	public SimulationServer( int port ) throws IOException {
+		super( "SimulationServer" );
+		selector = Selector.open( );
+		serverChannel = ServerSocketChannel.open( );
+		serverChannel.configureBlocking( false );
+		serverChannel.socket( ).bind( new InetSocketAddress( InetAddress.getByName( "127.0.0.1" ), port ) );
+		serverChannel.register( selector, SelectionKey.OP_ACCEPT );
+		// a thread for each connection with work, so none waits behind another
+		workers = Executors.newCachedThreadPool( );
+	}
+
+	public int getPort( ) {
+		return serverChannel.socket( ).getLocalPort( );
+	}
+
+	public synchronized long getNumRequests( ) {
+		return numRequests;
+	}
+
+	public synchronized long getNumConnections( ) {
+		return numConnections;
+	}
+
+	public void halt( ) {
+		running = false;
+		selector.wakeup( );
+	}
+
+	public void run( ) {
+		try {
+			while ( running ) {
+				selector.select( );
+				writeFinished( );
+
+				Iterator<SelectionKey> keys = selector.selectedKeys( ).iterator( );
+				while ( keys.hasNext( ) ) {
+					SelectionKey key = keys.next( );
+					keys.remove( );
+
+					try {
+						if ( key.isAcceptable( ) ) {
+							accept( );
+						} else {
+							if ( key.isReadable( ) ) {
+								read( key );
+							}
+							if ( key.isValid( ) && key.isWritable( ) ) {
+								write( key );
+							}
+						}
+					} catch ( IOException e ) {
+						// the client went away or broke the framing
+						close( key );
+					} catch ( RuntimeException e ) {
+						// drop just this client, never the selector thread
+						System.err.println( "Closing connection after " + e );
+						close( key );
+					}
+				}
+			}
+		} catch ( IOException e ) {
+			System.err.println( "Simulation server stopped: " + e );
+		} finally {
+			workers.shutdownNow( );
+			for ( SelectionKey key : selector.keys( ) ) {
+				close( key );
+			}
+			try {
+				selector.close( );
+			} catch ( IOException e ) {
+			}
+		}
+	}
+
+	private void accept( ) throws IOException {
+		SocketChannel channel = serverChannel.accept( );
+		if ( channel == null ) {
+			return;
+		}
+		channel.configureBlocking( false );
+		channel.socket( ).setTcpNoDelay( true );
+		channel.register( selector, SelectionKey.OP_READ, new Connection( ) );
+		synchronized ( this ) {
+			numConnections++;
+		}
+	}
+
+	private void read( final SelectionKey key ) throws IOException {
+		final Connection connection = (Connection) key.attachment( );
+		SocketChannel channel = (SocketChannel) key.channel( );
+
+		if ( channel.read( connection.in ) < 0 ) {
+			close( key );
+			return;
+		}
+		connection.in.flip( );
+		if ( !hasFrame( connection.in ) ) {
+			keepPartialFrame( connection );
+			return;
+		}
+
+		// the connection is the worker's until it is handed back
+		key.interestOps( 0 );
+		connection.busy = true;
+		workers.execute( new Runnable( ) {
+			public void run( ) {
+				try {
+					execute( connection );
+				} catch ( Throwable e ) {
+					connection.failure = e;
+				}
+				finished.add( key );
+				selector.wakeup( );
+			}
+		} );
+	}
+
+	private static boolean hasFrame( ByteBuffer in ) throws IOException {
+		if ( in.remaining( ) < 4 ) {
+			return false;
+		}
+		int length = in.getInt( in.position( ) );
+		if ( length < 1 || length > Protocol.MAX_FRAME ) {
+			throw new IOException( "bad frame length " + length );
+		}
+		return in.remaining( ) >= 4 + length;
+	}
+
+	// runs on a worker: every complete frame, in order
+	private void execute( Connection connection ) throws IOException {
+		ByteBuffer in = connection.in;
+		int dataEnd = in.limit( );
+		int executed = 0;
+		while ( hasFrame( in ) ) {
+			int payloadStart = in.position( ) + 5;
+			int frameEnd = in.position( ) + 4 + in.getInt( in.position( ) );
+			byte op = in.get( in.position( ) + 4 );
+
+			in.position( payloadStart );
+			in.limit( frameEnd );
+			ByteBuffer payload = in.slice( );
+			in.limit( dataEnd );
+			in.position( frameEnd );
+
+			connection.out = connection.session.execute( op, payload, connection.out );
+			executed++;
+		}
+		keepPartialFrame( connection );
+
+		synchronized ( this ) {
+			numRequests += executed;
+		}
+	}
+
+	// keeps the partial frame, making room for all of it
+	private static void keepPartialFrame( Connection connection ) {
+		ByteBuffer in = connection.in;
+		int needed = ( in.remaining( ) >= 4 ) ? 4 + in.getInt( in.position( ) ) : BUFFER_SIZE;
+		if ( needed > in.capacity( ) ) {
+			ByteBuffer grown = ByteBuffer.allocate( needed );
+			grown.put( in );
+			connection.in = grown;
+		} else {
+			in.compact( );
+		}
+	}
+
+	private void writeFinished( ) {
+		SelectionKey key;
+		while ( ( key = finished.poll( ) ) != null ) {
+			Connection connection = (Connection) key.attachment( );
+			connection.busy = false;
+			if ( !key.isValid( ) ) {
+				// closed while the worker ran, so the session was left to now
+				connection.session.close( );
+				continue;
+			}
+			Throwable failure = connection.failure;
+			if ( failure != null ) {
+				if ( !( failure instanceof IOException ) ) {
+					System.err.println( "Closing connection after " + failure );
+				}
+				close( key );
+				continue;
+			}
+			try {
+				write( key );
+			} catch ( IOException e ) {
+				close( key );
+			}
+		}
+	}
+
+	private void write( SelectionKey key ) throws IOException {
+		Connection connection = (Connection) key.attachment( );
+		SocketChannel channel = (SocketChannel) key.channel( );
+
+		ByteBuffer out = connection.out;
+		out.flip( );
+		channel.write( out );
+		out.compact( );
+
+		if ( out.position( ) > 0 ) {
+			// wait for the client to drain its side before reading more from it
+			key.interestOps( SelectionKey.OP_WRITE );
+		} else {
+			key.interestOps( SelectionKey.OP_READ );
+			if ( out.capacity( ) > BUFFER_SIZE ) {
+				// let a big snapshot's buffer go
+				connection.out = ByteBuffer.allocate( BUFFER_SIZE );
+			}
+		}
+	}
+
+	private void close( SelectionKey key ) {
+		Connection connection = (Connection) key.attachment( );
+		if ( connection != null && !connection.busy ) {
+			connection.session.close( );
+		}
+		key.cancel( );
+		try {
+			key.channel( ).close( );
+		} catch ( IOException e ) {
+		}
+	}
+
+
+	/**
+	 * @param args optionally the port to listen on
+	 */
+	public static void main( String[] args ) throws IOException {
+		int port = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : DEFAULT_PORT;
+		SimulationServer server = new SimulationServer( port );
+		System.out.println( "Simulation server listening on 127.0.0.1:" + server.getPort( ) );
+		server.start( );
+	}
+}
@@ -0,0 +1,258 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import simulation.ProbeSet;
+import simulation.Simulator;
+import state.ShortCircuitException;
+import state.SimulationState;
+
+/**
+ * One client's board, and the commands of the Protocol run against it.
+ * Knows nothing of sockets: requests come in as payload buffers and
+ * responses are appended to an output buffer.
+ */
+public class SimulationSession {
+	static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private SimulationState state = null;
+	private Simulator simulator = null;
+	private ProbeSet probes = new ProbeSet( );
+
+	private boolean[] inputs;
+	private boolean[] outputs;
+
+	// the response being written
+	private ByteBuffer out = null;
+
+	public SimulationState getState( ) {
+		return state;
+	}
+
+	public Simulator getSimulator( ) {
+		return simulator;
+	}
+
+	/**
+	 * Runs one request and writes its whole response frame.
+	 * @return the response buffer, reallocated if the response did not fit
+	 */
+	public ByteBuffer execute( byte op, ByteBuffer payload, ByteBuffer out ) {
+		// held in a field so a buffer grown before a failure is not lost
+		this.out = out;
+		int frameStart = out.position( );
+		reserve( 5 );
+		this.out.putInt( 0 );
+		this.out.put( Protocol.OK );
+
+		try {
+			respond( op, payload );
+		} catch ( IOException e ) {
+			error( frameStart, e.getMessage( ) );
+		} catch ( BufferUnderflowException e ) {
+			error( frameStart, "payload too short for op " + op );
+		} catch ( RuntimeException e ) {
+			// a bad request must never take the server down with it
+			error( frameStart, ( e.getMessage( ) != null ) ? e.getMessage( ) : e.toString( ) );
+		} catch ( ShortCircuitException e ) {
+			rewind( frameStart, Protocol.SHORT_CIRCUIT, 8 );
+			this.out.putInt( e.getLocation( ).x );
+			this.out.putInt( e.getLocation( ).y );
+		}
+
+		out = this.out;
+		this.out = null;
+		out.putInt( frameStart, out.position( ) - frameStart - 4 );
+		return out;
+	}
+
+	private void respond( byte op, ByteBuffer payload ) throws IOException, ShortCircuitException {
+		if ( op != Protocol.LOAD && state == null ) {
+			throw new IllegalStateException( "no board loaded" );
+		}
+
+		switch ( op ) {
+		case Protocol.LOAD:
+			load( new File( string( payload ) ) );
+			reserve( 16 );
+			out.putInt( state.getWidth( ) );
+			out.putInt( state.getHeight( ) );
+			out.putInt( inputs.length );
+			out.putInt( outputs.length );
+			return;
+
+		case Protocol.SET_INPUTS:
+			if ( payload.remaining( ) < ( inputs.length + 7 ) / 8 ) {
+				throw new IllegalArgumentException( "board has " + inputs.length + " inputs" );
+			}
+			for ( int i = 0; i < inputs.length; i++ ) {
+				inputs[i] = ( ( payload.get( payload.position( ) + i / 8 ) >> ( i % 8 ) ) & 1 ) != 0;
+			}
+			simulator.setInputs( inputs );
+			return;
+
+		case Protocol.STEP: {
+			int steps = payload.getInt( );
+			int simulated = 0;
+			int shorts = 0;
+			// stepping a settled board changes nothing, so stop there
+			while ( simulated < steps && !simulator.isSettled( ) ) {
+				try {
+					simulator.step( );
+				} catch ( ShortCircuitException e ) {
+					shorts++;
+				}
+				simulated++;
+			}
+			reserve( 9 );
+			out.putInt( simulated );
+			out.putInt( shorts );
+			out.put( (byte) ( simulator.isSettled( ) ? 1 : 0 ) );
+			return;
+		}
+
+		case Protocol.RUN_UNTIL_SETTLED: {
+			int steps = simulator.runUntilSettled( payload.getInt( ) );
+			reserve( 4 );
+			out.putInt( steps );
+			return;
+		}
+
+		case Protocol.READ_OUTPUTS:
+			simulator.readOutputs( outputs );
+			reserve( 4 + ( outputs.length + 7 ) / 8 );
+			out.putInt( outputs.length );
+			putBits( out, outputs );
+			return;
+
+		case Protocol.SET_PROBES:
+			probes = ProbeSet.parse( new StringReader( string( payload ) ), state );
+			reserve( 4 );
+			out.putInt( probes.size( ) );
+			return;
+
+		case Protocol.READ_PROBES:
+			probes.sample( state );
+			reserve( 4 + probes.size( ) );
+			out.putInt( probes.size( ) );
+			for ( int i = 0; i < probes.size( ); i++ ) {
+				out.put( (byte) probes.getValue( i ) );
+			}
+			return;
+
+		case Protocol.SNAPSHOT: {
+			// the whole board, or the region asked for
+			int left = 0, top = 0, width = state.getWidth( ), height = state.getHeight( );
+			if ( payload.hasRemaining( ) ) {
+				left = payload.getInt( );
+				top = payload.getInt( );
+				width = payload.getInt( );
+				height = payload.getInt( );
+				if ( left < 0 || top < 0 || width < 0 || height < 0
+						|| (long) left + width > state.getWidth( ) || (long) top + height > state.getHeight( ) ) {
+					throw new IllegalArgumentException( "region " + left + "," + top + " " + width + "x" + height + " is not on the board" );
+				}
+			}
+			long size = 8 + (long) width * height;
+			if ( 1 + size > Protocol.MAX_FRAME ) {
+				throw new IllegalArgumentException( "a " + width + "x" + height + " snapshot does not fit in a frame; ask for a region" );
+			}
+
+			reserve( (int) size );
+			out.putInt( width );
+			out.putInt( height );
+			for ( int y = top; y < top + height; y++ ) {
+				for ( int x = left; x < left + width; x++ ) {
+					out.put( (byte) ( ( state.getCell( x, y ) << 2 ) | state.getPressure( x, y ) ) );
+				}
+			}
+			return;
+		}
+		}
+
+		throw new IllegalArgumentException( "unknown op " + op );
+	}
+
+	/**
+	 * Lets go of the loaded board, when the client goes away.
+	 */
+	public void close( ) {
+		close( state );
+		state = null;
+		simulator = null;
+	}
+
+	private void load( File boardFile ) throws IOException {
+		SimulationState loaded = SimulationState.load( boardFile );
+		close( state );
+		state = loaded;
+		simulator = new Simulator( state );
+		probes = new ProbeSet( );
+		inputs = new boolean[state.getInputs( ).size( )];
+		outputs = new boolean[state.getOutputs( ).size( )];
+	}
+
+	private static void close( SimulationState board ) {
+		if ( board != null ) {
+			try {
+				board.close( );
+			} catch ( IOException e ) {
+			}
+		}
+	}
+
+	private static String string( ByteBuffer payload ) {
+		return UTF8.decode( payload ).toString( );
+	}
+
+	private static void putBits( ByteBuffer out, boolean[] bits ) {
+		for ( int i = 0; i < bits.length; i += 8 ) {
+			int packed = 0;
+			for ( int b = 0; b < 8 && i + b < bits.length; b++ ) {
+				if ( bits[i + b] ) {
+					packed |= 1 << b;
+				}
+			}
+			out.put( (byte) packed );
+		}
+	}
+
+	private void error( int frameStart, String message ) {
+		byte[] text = String.valueOf( message ).getBytes( UTF8 );
+		rewind( frameStart, Protocol.ERROR, text.length );
+		out.put( text );
+	}
+
+	// drops whatever the response wrote and starts it over with another status
+	private void rewind( int frameStart, byte status, int count ) {
+		out.position( frameStart + 4 );
+		reserve( 1 + count );
+		out.put( status );
+	}
+
+	private void reserve( int count ) {
+		out = reserve( out, count );
+	}
+
+	/**
+	 * @return out, or a larger copy of it, with room for another count bytes
+	 */
+	static ByteBuffer reserve( ByteBuffer out, int count ) {
+		if ( out.remaining( ) >= count ) {
+			return out;
+		}
+		int capacity = out.capacity( );
+		while ( capacity - out.position( ) < count ) {
+			capacity *= 2;
+		}
+		ByteBuffer grown = ByteBuffer.allocate( capacity );
+		out.flip( );
+		grown.put( out );
+		return grown;
+	}
+}
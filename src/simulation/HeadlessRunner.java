@@ -0,0 +1,199 @@
+package simulation;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import state.ShortCircuitException;
+import state.SimulationState;
+
+/**
+ * Drives a board from a Stimulus as fast as it will go, with no viewer,
+ * recording inputs, outputs, probe pressures and short circuits into a
+ * TraceSink.
+ *
+ * Steps on a settled board are skipped (the recorded values carry over)
+ * until the stimulus changes an input.
+ */
+public class HeadlessRunner {
+	private Simulator simulator;
+	private Stimulus stimulus;
+	private TraceSink trace;
+	private ProbeSet probes;
+
+	private int[] inputSignals;
+	private int[] outputSignals;
+	private int[] probeSignals;
+	private int shortSignal;
+
+	private long stepsSimulated = 0;
+	private long shortCircuits = 0;
+
+	public HeadlessRunner( SimulationState state, Stimulus stimulus ) {
+		this( state, stimulus, new WaveformTrace( ) );
+	}
+	
+	public HeadlessRunner( SimulationState state, Stimulus stimulus, TraceSink trace ) {
+		this( state, stimulus, trace, new ProbeSet( ) );
+	}
+	
+	public HeadlessRunner( SimulationState state, Stimulus stimulus, TraceSink trace, ProbeSet probes ) {
+		this.simulator = new Simulator( state );
+		this.stimulus = stimulus;
+		this.trace = trace;
+		this.probes = probes;
+
+		if ( stimulus.getNumInputs( ) != state.getInputs( ).size( ) ) {
+			throw new IllegalArgumentException( "stimulus drives " + stimulus.getNumInputs( )
+				+ " inputs, board has " + state.getInputs( ).size( ) );
+		}
+
+		inputSignals = new int[state.getInputs( ).size( )];
+		for ( int i = 0; i < inputSignals.length; i++ ) {
+			inputSignals[i] = trace.addSignal( "in" + i, 1 );
+		}
+
+		outputSignals = new int[state.getOutputs( ).size( )];
+		for ( int i = 0; i < outputSignals.length; i++ ) {
+			outputSignals[i] = trace.addSignal( "out" + i, 1 );
+		}
+
+		// probes record the raw two bit pressure
+		probeSignals = new int[probes.size( )];
+		for ( int i = 0; i < probeSignals.length; i++ ) {
+			probeSignals[i] = trace.addSignal( probes.getName( i ), 2 );
+		}
+
+		shortSignal = trace.addSignal( "short", 1 );
+	}
+
+	public Simulator getSimulator( ) {
+		return simulator;
+	}
+
+	public ProbeSet getProbes( ) {
+		return probes;
+	}
+
+	public TraceSink getTrace( ) {
+		return trace;
+	}
+
+	public long getStepsSimulated( ) {
+		return stepsSimulated;
+	}
+
+	public long getShortCircuits( ) {
+		return shortCircuits;
+	}
+
+	public void run( ) throws IOException {
+		boolean[] inputs  = new boolean[inputSignals.length];
+		boolean[] applied = new boolean[inputSignals.length];
+		boolean[] outputs = new boolean[outputSignals.length];
+		boolean shorted = false;
+		boolean first = true;
+
+		for ( long step = 0; step < stimulus.getNumSteps( ); step++ ) {
+			stimulus.valuesAt( step, inputs );
+			if ( first || !Arrays.equals( inputs, applied ) ) {
+				simulator.setInputs( inputs );
+				System.arraycopy( inputs, 0, applied, 0, inputs.length );
+				first = false;
+			}
+
+			if ( !simulator.isSettled( ) ) {
+				shorted = false;
+				try {
+					simulator.step( );
+				} catch ( ShortCircuitException e ) {
+					shorted = true;
+					shortCircuits++;
+				}
+				stepsSimulated++;
+				simulator.readOutputs( outputs );
+				probes.sample( simulator.getState( ) );
+			}
+
+			for ( int i = 0; i < inputs.length; i++ ) {
+				trace.record( inputSignals[i], inputs[i] ? 1 : 0 );
+			}
+			for ( int i = 0; i < outputs.length; i++ ) {
+				trace.record( outputSignals[i], outputs[i] ? 1 : 0 );
+			}
+			for ( int i = 0; i < probeSignals.length; i++ ) {
+				trace.record( probeSignals[i], probes.getValue( i ) );
+			}
+			trace.record( shortSignal, shorted ? 1 : 0 );
+			trace.endStep( );
+		}
+	}
+
+
+	/**
+	 * @param args board (bitmap, .board or .layout), stimulus file, and
+	 *        optionally a trace file to write: .vcd is built in memory,
+	 *        anything else is streamed as runs.
+	 *        "-probes file" adds probes to the trace.
+	 */
+	public static void main( String[] args ) throws IOException {
+		ArrayList<String> positional = new ArrayList<String>( );
+		String probeFile = null;
+		for ( int i = 0; i < args.length; i++ ) {
+			if ( args[i].equals( "-probes" ) && i + 1 < args.length ) {
+				probeFile = args[++i];
+			} else {
+				positional.add( args[i] );
+			}
+		}
+
+		if ( positional.size( ) < 2 ) {
+			System.err.println( "usage: HeadlessRunner [-probes file] board stimulus.stim [trace.vcd|trace.runs]" );
+			System.exit( 1 );
+		}
+		String boardFile = positional.get( 0 );
+		String traceFile = ( positional.size( ) > 2 ) ? positional.get( 2 ) : null;
+
+		SimulationState state = SimulationState.load( new File( boardFile ) );
+		Stimulus stimulus = Stimulus.load( new File( positional.get( 1 ) ), state.getInputs( ).size( ) );
+		ProbeSet probes = ( probeFile != null ) ? ProbeSet.load( new File( probeFile ), state ) : new ProbeSet( );
+		String moduleName = new File( boardFile ).getName( ).replaceAll( "\\W", "_" );
+
+		TraceSink trace;
+		if ( traceFile != null && !traceFile.endsWith( ".vcd" ) ) {
+			trace = new OutputRecorder( new File( traceFile ) );
+		} else {
+			trace = new WaveformTrace( );
+		}
+		HeadlessRunner runner = new HeadlessRunner( state, stimulus, trace, probes );
+
+		long start = System.nanoTime( );
+		runner.run( );
+		long elapsed = System.nanoTime( ) - start;
+
+		System.out.println( stimulus.getNumSteps( ) + " steps (" + runner.getStepsSimulated( ) + " simulated, "
+			+ runner.getShortCircuits( ) + " short circuits) in " + ( elapsed / 1000000 ) + "ms" );
+		for ( int i = 0; i < probes.size( ); i++ ) {
+			System.out.println( "probe " + probes.getName( i ) + " ends at pressure " + probes.getValue( i ) );
+		}
+
+		if ( trace instanceof OutputRecorder ) {
+			OutputRecorder recorder = (OutputRecorder) trace;
+			for ( int i = 0; i < runner.outputSignals.length; i++ ) {
+				System.out.println( recorder.getName( runner.outputSignals[i] ) + " first high at step "
+					+ recorder.firstStepWithValue( runner.outputSignals[i], 1, 0 ) );
+			}
+			recorder.close( );
+		} else if ( traceFile != null ) {
+			BufferedWriter out = new BufferedWriter( new FileWriter( traceFile ) );
+			try {
+				new VcdWriter( out, moduleName ).write( (WaveformTrace) trace );
+			} finally {
+				out.close( );
+			}
+		}
+	}
+}
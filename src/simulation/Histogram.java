@@ -0,0 +1,124 @@
+package simulation;
+
+/**
+ * Power-of-two bucketed histogram of non-negative longs. Recording is a
+ * couple of adds and a leading-zero count, so it is cheap enough to call
+ * on every phase of every step.
+ */
+public class Histogram {
+	public static final int NUM_BUCKETS = 64;
+
+	private long[] buckets = new long[NUM_BUCKETS];
+	private long count = 0;
+	private long sum = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	public void record( long value ) {
+		if ( value < 0 ) {
+			value = 0;
+		}
+
+		buckets[bucketFor( value )]++;
+		count++;
+		sum += value;
+
+		if ( value < min ) {
+			min = value;
+		}
+		if ( value > max ) {
+			max = value;
+		}
+	}
+
+	public void reset( ) {
+		for ( int i = 0; i < NUM_BUCKETS; i++ ) {
+			buckets[i] = 0;
+		}
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	public long getCount( ) {
+		return count;
+	}
+
+	public long getSum( ) {
+		return sum;
+	}
+
+	public long getMin( ) {
+		return ( count == 0 ) ? 0 : min;
+	}
+
+	public long getMax( ) {
+		return max;
+	}
+
+	public double getMean( ) {
+		return ( count == 0 ) ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * @return the upper bound of the bucket holding the given fraction of values
+	 */
+	public long getPercentile( double fraction ) {
+		if ( count == 0 ) {
+			return 0;
+		}
+
+		long target = (long) Math.ceil( fraction * count );
+		long seen = 0;
+		for ( int i = 0; i < NUM_BUCKETS; i++ ) {
+			seen += buckets[i];
+			if ( seen >= target ) {
+				return Math.min( bucketUpperBound( i ), max );
+			}
+		}
+
+		return max;
+	}
+
+	public long getBucket( int index ) {
+		return buckets[index];
+	}
+
+	public void appendJSON( StringBuilder json ) {
+		json.append( "{\"count\":" ).append( count );
+		json.append( ",\"sum\":" ).append( sum );
+		json.append( ",\"min\":" ).append( getMin( ) );
+		json.append( ",\"max\":" ).append( max );
+		json.append( ",\"p50\":" ).append( getPercentile( 0.5 ) );
+		json.append( ",\"p99\":" ).append( getPercentile( 0.99 ) );
+		json.append( ",\"buckets\":{" );
+
+		boolean first = true;
+		for ( int i = 0; i < NUM_BUCKETS; i++ ) {
+			if ( buckets[i] != 0 ) {
+				if ( !first ) {
+					json.append( ',' );
+				}
+				json.append( '"' ).append( bucketUpperBound( i ) ).append( "\":" ).append( buckets[i] );
+				first = false;
+			}
+		}
+
+		json.append( "}}" );
+	}
+
+	// bucket i holds values in [2^(i-1), 2^i), bucket 0 holds only zero
+	private static int bucketFor( long value ) {
+		return Math.min( NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros( value ) );
+	}
+
+	private static long bucketUpperBound( int index ) {
+		if ( index == 0 ) {
+			return 0;
+		} else if ( index >= 63 ) {
+			return Long.MAX_VALUE;
+		}
+		return ( 1L << index ) - 1;
+	}
+}
@@ -0,0 +1,325 @@
+package simulation;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import state.CircuitTemplate;
+import state.ConnectionNet;
+import state.SimulationState;
+import state.SubCircuitInstance;
+
+/**
+ * Steps the sub-circuit instances of a board by their templates'
+ * memoized behaviour instead of filling them cell by cell.
+ *
+ * An instance is stepped this way while it is sealed off: no open cell on
+ * the edge of its area faces an open cell outside, its nets are exactly
+ * its template's, and no other instance overlaps it. Pressure then cannot
+ * cross its edge either way, so its step depends only on its own cells,
+ * and instances of one template share a TemplateBehaviour keyed by them.
+ * Instances connect to the host through the board's inputs and outputs,
+ * which are their own input and output cells. An instance that is wired
+ * into the host some other way is filled with it, as is every instance on
+ * a step where any of them would short, so shorts are found in the same
+ * order as on a flat board.
+ */
+public class InstanceEvaluator {
+	private SimulationState state;
+	private SubCircuitInstance[] instances;
+	private TemplateBehaviour[] behaviours;
+	private byte[][] keys;
+	private boolean[] overlapped;
+
+	private long netRevision = -1;
+	private boolean[] netsMatch;
+
+	// this step's results, null for instances filled with the host
+	private TemplateBehaviour.Step[] steps;
+	private boolean[] skipped;
+	private int[][] rowSkips = null;
+
+	public InstanceEvaluator( SimulationState state ) {
+		this( state, TemplateBehaviour.DEFAULT_CACHE_SIZE );
+	}
+
+	public InstanceEvaluator( SimulationState state, int cacheSize ) {
+		this.state = state;
+		ArrayList<SubCircuitInstance> placed = state.getInstances( );
+		int count = placed.size( );
+
+		// sorted by left edge, so each row's skipped areas come out in order
+		instances = placed.toArray( new SubCircuitInstance[count] );
+		Arrays.sort( instances, new Comparator<SubCircuitInstance>( ) {
+			public int compare( SubCircuitInstance a, SubCircuitInstance b ) {
+				return Integer.valueOf( a.getX( ) ).compareTo( b.getX( ) );
+			}
+		} );
+
+		behaviours = new TemplateBehaviour[count];
+		keys = new byte[count][];
+		HashMap<CircuitTemplate, TemplateBehaviour> shared = new HashMap<CircuitTemplate, TemplateBehaviour>( );
+		for ( int i = 0; i < count; i++ ) {
+			CircuitTemplate template = instances[i].getTemplate( );
+			if ( template.getWidth( ) * template.getHeight( ) > TemplateBehaviour.MAX_CELLS ) {
+				continue;
+			}
+			if ( !shared.containsKey( template ) ) {
+				shared.put( template, new TemplateBehaviour( template, cacheSize ) );
+			}
+			behaviours[i] = shared.get( template );
+			keys[i] = new byte[template.getWidth( ) * template.getHeight( )];
+		}
+
+		overlapped = new boolean[count];
+		for ( int i = 0; i < count; i++ ) {
+			for ( int j = i + 1; j < count && instances[j].getX( ) < right( i ); j++ ) {
+				if ( instances[j].getY( ) < bottom( i ) && instances[i].getY( ) < bottom( j ) ) {
+					overlapped[i] = true;
+					overlapped[j] = true;
+				}
+			}
+		}
+
+		netsMatch = new boolean[count];
+		steps = new TemplateBehaviour.Step[count];
+		skipped = new boolean[count];
+	}
+
+	public int size( ) {
+		return instances.length;
+	}
+
+	/**
+	 * @return the number of instance steps answered from a cache
+	 */
+	public long getHits( ) {
+		long hits = 0;
+		for ( TemplateBehaviour behaviour : distinctBehaviours( ) ) {
+			hits += behaviour.getHits( );
+		}
+		return hits;
+	}
+
+	/**
+	 * @return the number of instance steps that had to be simulated
+	 */
+	public long getMisses( ) {
+		long misses = 0;
+		for ( TemplateBehaviour behaviour : distinctBehaviours( ) ) {
+			misses += behaviour.getMisses( );
+		}
+		return misses;
+	}
+
+	/**
+	 * Looks up this step of every sealed-off instance and has the fill
+	 * skip them. Called before the fill.
+	 * @return true if any instance will be stepped by behaviour
+	 */
+	public boolean prepare( ) {
+		if ( state.getNetRevision( ) != netRevision ) {
+			netRevision = state.getNetRevision( );
+			for ( int i = 0; i < instances.length; i++ ) {
+				netsMatch[i] = behaviours[i] != null && netsMatch( i );
+			}
+		}
+
+		boolean any = false;
+		for ( int i = 0; i < instances.length; i++ ) {
+			steps[i] = null;
+			if ( overlapped[i] || !netsMatch[i] || !sealed( i ) ) {
+				continue;
+			}
+			TemplateBehaviour.Step step = behaviours[i].step( readKey( i ) );
+			if ( step.shorts( ) ) {
+				flatten( );
+				return false;
+			}
+			steps[i] = step;
+			any = true;
+		}
+
+		if ( !Arrays.equals( stepsSkipped( ), skipped ) ) {
+			for ( int i = 0; i < instances.length; i++ ) {
+				skipped[i] = ( steps[i] != null );
+			}
+			rowSkips = buildSkips( );
+		}
+		state.setFillSkips( any ? rowSkips : null );
+		return any;
+	}
+
+	/**
+	 * Writes this step's results onto the board. Called after the fill and
+	 * the host's shifts.
+	 * @return the number of shuttle cells shifted inside instances
+	 */
+	public int apply( ) {
+		int numShifts = 0;
+		for ( int i = 0; i < instances.length; i++ ) {
+			if ( steps[i] != null ) {
+				TemplateBehaviour.apply( steps[i], state, instances[i].getX( ), instances[i].getY( ),
+					instances[i].getTemplate( ).getWidth( ) );
+				numShifts += steps[i].getNumShifts( );
+				steps[i] = null;
+			}
+		}
+		state.setFillSkips( null );
+		return numShifts;
+	}
+
+	/**
+	 * Drops this step's results, so every instance is filled with the host.
+	 */
+	public void flatten( ) {
+		Arrays.fill( steps, null );
+		state.setFillSkips( null );
+	}
+
+
+	private int right( int i ) {
+		return instances[i].getX( ) + instances[i].getTemplate( ).getWidth( );
+	}
+
+	private int bottom( int i ) {
+		return instances[i].getY( ) + instances[i].getTemplate( ).getHeight( );
+	}
+
+	private byte[] readKey( int i ) {
+		byte[] key = keys[i];
+		int left = instances[i].getX( );
+		int top = instances[i].getY( );
+		int width = instances[i].getTemplate( ).getWidth( );
+		for ( int y = 0; y < instances[i].getTemplate( ).getHeight( ); y++ ) {
+			for ( int x = 0; x < width; x++ ) {
+				key[y * width + x] = (byte) state.getCell( left + x, top + y );
+			}
+		}
+		return key;
+	}
+
+	// no open cell on the edge faces an open cell outside
+	private boolean sealed( int i ) {
+		int left = instances[i].getX( ), top = instances[i].getY( );
+		int right = right( i ) - 1, bottom = bottom( i ) - 1;
+		for ( int x = left; x <= right; x++ ) {
+			if ( faces( x, top, x, top - 1 ) || faces( x, bottom, x, bottom + 1 ) ) {
+				return false;
+			}
+		}
+		for ( int y = top; y <= bottom; y++ ) {
+			if ( faces( left, y, left - 1, y ) || faces( right, y, right + 1, y ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean faces( int x, int y, int outsideX, int outsideY ) {
+		if ( outsideX < 0 || outsideY < 0 || outsideX >= state.getWidth( ) || outsideY >= state.getHeight( ) ) {
+			return false;
+		}
+		return state.getCell( x, y ) != SimulationState.SOLID && state.getCell( outsideX, outsideY ) != SimulationState.SOLID;
+	}
+
+	// the nets on the instance's cells are its template's, and go nowhere else
+	private boolean netsMatch( int i ) {
+		CircuitTemplate template = instances[i].getTemplate( );
+		int left = instances[i].getX( ), top = instances[i].getY( );
+
+		HashSet<ConnectionNet> found = new HashSet<ConnectionNet>( );
+		Point lookup = new Point( );
+		for ( int y = top; y < bottom( i ); y++ ) {
+			for ( int x = left; x < right( i ); x++ ) {
+				lookup.setLocation( x, y );
+				ConnectionNet net = state.getNetConnection( lookup );
+				if ( net != null ) {
+					found.add( net );
+				}
+			}
+		}
+		if ( found.size( ) != template.getNumNets( ) ) {
+			return false;
+		}
+
+		ArrayList<long[]> expected = new ArrayList<long[]>( );
+		for ( int n = 0; n < template.getNumNets( ); n++ ) {
+			expected.add( sortedPoints( template.getNetPoints( n ), 0, 0 ) );
+		}
+		for ( ConnectionNet net : found ) {
+			long[] points = sortedPoints( net.getPoints( ).toArray( new Point[0] ), left, top );
+			boolean matched = false;
+			for ( int n = 0; n < expected.size( ) && !matched; n++ ) {
+				if ( Arrays.equals( expected.get( n ), points ) ) {
+					expected.remove( n );
+					matched = true;
+				}
+			}
+			if ( !matched ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long[] sortedPoints( Point[] points, int left, int top ) {
+		long[] packed = new long[points.length];
+		for ( int p = 0; p < points.length; p++ ) {
+			packed[p] = ( (long) ( points[p].y - top ) << 32 ) | ( ( points[p].x - left ) & 0xFFFFFFFFL );
+		}
+		Arrays.sort( packed );
+		return packed;
+	}
+
+	private boolean[] stepsSkipped( ) {
+		boolean[] now = new boolean[instances.length];
+		for ( int i = 0; i < instances.length; i++ ) {
+			now[i] = ( steps[i] != null );
+		}
+		return now;
+	}
+
+	private int[][] buildSkips( ) {
+		int height = state.getHeight( );
+		int[] counts = new int[height];
+		for ( int i = 0; i < instances.length; i++ ) {
+			if ( skipped[i] ) {
+				for ( int y = instances[i].getY( ); y < bottom( i ); y++ ) {
+					counts[y]++;
+				}
+			}
+		}
+
+		int[][] rows = new int[height][];
+		for ( int y = 0; y < height; y++ ) {
+			if ( counts[y] > 0 ) {
+				rows[y] = new int[counts[y] * 2];
+				counts[y] = 0;
+			}
+		}
+		// instances are in left edge order and do not overlap
+		for ( int i = 0; i < instances.length; i++ ) {
+			if ( skipped[i] ) {
+				for ( int y = instances[i].getY( ); y < bottom( i ); y++ ) {
+					rows[y][counts[y]++] = instances[i].getX( );
+					rows[y][counts[y]++] = right( i );
+				}
+			}
+		}
+		return rows;
+	}
+
+	private ArrayList<TemplateBehaviour> distinctBehaviours( ) {
+		ArrayList<TemplateBehaviour> distinct = new ArrayList<TemplateBehaviour>( );
+		for ( TemplateBehaviour behaviour : behaviours ) {
+			if ( behaviour != null && !distinct.contains( behaviour ) ) {
+				distinct.add( behaviour );
+			}
+		}
+		return distinct;
+	}
+}
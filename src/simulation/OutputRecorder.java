@@ -0,0 +1,505 @@
+package simulation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Records per-step signal values as run lengths, one column per signal
+ * bit, and streams them to disk a chunk of steps at a time. Only the
+ * chunk being recorded and a few ints of summary per flushed chunk are
+ * kept in memory, so run length is bounded by disk rather than heap.
+ *
+ * File layout: an int magic, the signal table (count, then name and
+ * width each), then chunks. A chunk is its step count followed, for
+ * every column, by the starting bit, the number of runs and the run
+ * lengths, all counts as unsigned varints.
+ *
+ * Queries and exportVcd read the flushed chunks back through the open
+ * file, so they must be made before close; afterwards they, like
+ * recording, throw IllegalStateException.
+ */
+public class OutputRecorder implements TraceSink {
+	public static final int DEFAULT_CHUNK_STEPS = 1 << 16;
+	private static final int MAGIC = 0x5352554e;
+
+	private RandomAccessFile data;
+	private int chunkSteps;
+	private boolean headerWritten = false;
+	private boolean closed = false;
+
+	// signals
+	private ArrayList<String> names = new ArrayList<String>( );
+	private int[] widths = new int[0];
+	private int[] firstColumns = new int[0];
+	private int[] pending = new int[0];
+	private int numColumns = 0;
+
+	// chunk being recorded, per column
+	private int[][] runs;
+	private int[] numRuns;
+	private int[] startBits;
+	private int[] runBits;
+	private int[] runLengths;
+	private int[] firstOne;
+	private int[] firstZero;
+	private int stepsInChunk = 0;
+	private long numSteps = 0;
+
+	// index of flushed chunks
+	private int numChunks = 0;
+	private long[] chunkFirstSteps = new long[16];
+	private long[] chunkOffsets = new long[16];
+	private int[] chunkLengths = new int[16];
+	private int[][] chunkFirstOne = new int[16][];
+	private int[][] chunkFirstZero = new int[16][];
+
+	// the last chunk read back, decoded
+	private int cachedChunk = -1;
+	private Chunk cached;
+
+	// a chunk's runs, decoded
+	private static class Chunk {
+		long firstStep;
+		int steps;
+		int[] startBits;
+		int[][] runs;
+		int[] numRuns;
+	}
+
+	public OutputRecorder( File file ) throws IOException {
+		this( file, DEFAULT_CHUNK_STEPS );
+	}
+
+	public OutputRecorder( File file, int chunkSteps ) throws IOException {
+		this.chunkSteps = chunkSteps;
+		this.data = new RandomAccessFile( file, "rw" );
+		this.data.setLength( 0 );
+	}
+
+	public int addSignal( String name, int width ) {
+		if ( headerWritten ) {
+			throw new IllegalStateException( "signals must be declared before recording" );
+		}
+
+		int id = names.size( );
+		names.add( name );
+		widths = Arrays.copyOf( widths, id + 1 );
+		firstColumns = Arrays.copyOf( firstColumns, id + 1 );
+		pending = Arrays.copyOf( pending, id + 1 );
+		widths[id] = width;
+		firstColumns[id] = numColumns;
+		numColumns += width;
+
+		return id;
+	}
+
+	public int getNumSignals( ) {
+		return names.size( );
+	}
+
+	public String getName( int signal ) {
+		return names.get( signal );
+	}
+
+	public int getWidth( int signal ) {
+		return widths[signal];
+	}
+
+	public long getNumSteps( ) {
+		return numSteps;
+	}
+
+	/**
+	 * Sets a signal's value for the step being recorded. It holds until recorded again.
+	 */
+	public void record( int signal, int value ) {
+		checkOpen( );
+		pending[signal] = value;
+	}
+
+	public void endStep( ) throws IOException {
+		checkOpen( );
+		if ( !headerWritten ) {
+			writeHeader( );
+		}
+
+		for ( int signal = 0; signal < pending.length; signal++ ) {
+			int value = pending[signal];
+			int first = firstColumns[signal];
+
+			for ( int b = 0; b < widths[signal]; b++ ) {
+				int column = first + b;
+				int bit = ( value >> b ) & 1;
+
+				if ( stepsInChunk == 0 ) {
+					startBits[column] = bit;
+					runBits[column] = bit;
+					runLengths[column] = 1;
+				} else if ( bit == runBits[column] ) {
+					runLengths[column]++;
+				} else {
+					appendRun( column );
+					runBits[column] = bit;
+					runLengths[column] = 1;
+				}
+
+				if ( bit == 1 && firstOne[column] < 0 ) {
+					firstOne[column] = stepsInChunk;
+				} else if ( bit == 0 && firstZero[column] < 0 ) {
+					firstZero[column] = stepsInChunk;
+				}
+			}
+		}
+
+		stepsInChunk++;
+		numSteps++;
+		if ( stepsInChunk == chunkSteps ) {
+			flushChunk( );
+		}
+	}
+
+	/**
+	 * Writes any partly recorded chunk out and closes the file. Does
+	 * nothing if already closed.
+	 */
+	public void close( ) throws IOException {
+		if ( closed ) {
+			return;
+		}
+		closed = true;
+		try {
+			if ( !headerWritten ) {
+				writeHeader( );
+			}
+			flushChunk( );
+		} finally {
+			data.close( );
+		}
+	}
+
+	public boolean isClosed( ) {
+		return closed;
+	}
+
+
+	// queries
+
+	/**
+	 * @return the first step at or after fromStep where the signal has the value, or -1
+	 */
+	public long firstStepWithValue( int signal, int value, long fromStep ) throws IOException {
+		checkOpen( );
+		int first = firstColumns[signal];
+		int width = widths[signal];
+		int totalChunks = numChunks + ( stepsInChunk > 0 ? 1 : 0 );
+
+		for ( int chunk = chunkContaining( fromStep ); chunk < totalChunks; chunk++ ) {
+			long chunkStart = chunkStart( chunk );
+			int offset = (int) Math.max( 0, fromStep - chunkStart );
+
+			// the summaries can rule a chunk out, or answer outright for one bit from its start
+			boolean possible = true;
+			for ( int b = 0; b < width && possible; b++ ) {
+				possible = firstWithBit( chunk, first + b, ( value >> b ) & 1 ) >= 0;
+			}
+			if ( !possible ) {
+				continue;
+			}
+			if ( width == 1 && offset <= firstWithBit( chunk, first, value & 1 ) ) {
+				return chunkStart + firstWithBit( chunk, first, value & 1 );
+			}
+
+			Chunk decoded = readChunk( chunk );
+			int step = offset;
+			boolean agreed = false;
+			while ( step >= 0 && !agreed ) {
+				agreed = true;
+				for ( int b = 0; b < width; b++ ) {
+					int next = nextWithBit( decoded, first + b, ( value >> b ) & 1, step );
+					if ( next != step ) {
+						step = next;
+						agreed = false;
+						break;
+					}
+				}
+			}
+			if ( step >= 0 ) {
+				return chunkStart + step;
+			}
+		}
+
+		return -1;
+	}
+
+	public long firstRise( int signal, long fromStep ) throws IOException {
+		long low = firstStepWithValue( signal, 0, fromStep );
+		return ( low < 0 ) ? -1 : firstStepWithValue( signal, 1, low );
+	}
+
+	public int valueAt( int signal, long step ) throws IOException {
+		checkOpen( );
+		if ( step < 0 || step >= numSteps ) {
+			throw new IndexOutOfBoundsException( "step " + step + " of " + numSteps );
+		}
+
+		Chunk decoded = readChunk( chunkContaining( step ) );
+		int offset = (int) ( step - decoded.firstStep );
+		int value = 0;
+		for ( int b = 0; b < widths[signal]; b++ ) {
+			value |= bitAt( decoded, firstColumns[signal] + b, offset ) << b;
+		}
+		return value;
+	}
+
+	/**
+	 * Streams the whole recording out as a VCD, a chunk at a time.
+	 */
+	public void exportVcd( Writer out, String moduleName ) throws IOException {
+		checkOpen( );
+		int numSignals = names.size( );
+		VcdWriter vcd = new VcdWriter( out, moduleName );
+		vcd.begin( names.toArray( new String[numSignals] ), widths );
+
+		int[] values = new int[numSignals];
+		int[] runIndex = new int[numColumns];
+		int[] runLeft = new int[numColumns];
+		int[] bits = new int[numColumns];
+		int totalChunks = numChunks + ( stepsInChunk > 0 ? 1 : 0 );
+
+		for ( int chunk = 0; chunk < totalChunks; chunk++ ) {
+			Chunk decoded = readChunk( chunk );
+			for ( int column = 0; column < numColumns; column++ ) {
+				runIndex[column] = 0;
+				runLeft[column] = decoded.runs[column][0];
+				bits[column] = decoded.startBits[column];
+			}
+
+			for ( int step = 0; step < decoded.steps; step++ ) {
+				for ( int column = 0; column < numColumns; column++ ) {
+					if ( runLeft[column] == 0 ) {
+						runIndex[column]++;
+						runLeft[column] = decoded.runs[column][runIndex[column]];
+						bits[column] ^= 1;
+					}
+					runLeft[column]--;
+				}
+				for ( int signal = 0; signal < numSignals; signal++ ) {
+					int value = 0;
+					for ( int b = 0; b < widths[signal]; b++ ) {
+						value |= bits[firstColumns[signal] + b] << b;
+					}
+					values[signal] = value;
+				}
+				vcd.writeStep( values );
+			}
+		}
+
+		vcd.end( );
+	}
+
+
+	// recording internals
+
+	private void checkOpen( ) {
+		if ( closed ) {
+			throw new IllegalStateException( "recorder is closed" );
+		}
+	}
+
+	private void writeHeader( ) throws IOException {
+		data.writeInt( MAGIC );
+		data.writeInt( names.size( ) );
+		for ( int i = 0; i < names.size( ); i++ ) {
+			data.writeUTF( names.get( i ) );
+			data.writeInt( widths[i] );
+		}
+
+		runs = new int[numColumns][16];
+		numRuns = new int[numColumns];
+		startBits = new int[numColumns];
+		runBits = new int[numColumns];
+		runLengths = new int[numColumns];
+		firstOne = new int[numColumns];
+		firstZero = new int[numColumns];
+		Arrays.fill( firstOne, -1 );
+		Arrays.fill( firstZero, -1 );
+
+		headerWritten = true;
+	}
+
+	private void appendRun( int column ) {
+		if ( numRuns[column] == runs[column].length ) {
+			runs[column] = Arrays.copyOf( runs[column], numRuns[column] * 2 );
+		}
+		runs[column][numRuns[column]++] = runLengths[column];
+	}
+
+	private void flushChunk( ) throws IOException {
+		if ( stepsInChunk == 0 ) {
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream( );
+		DataOutputStream out = new DataOutputStream( bytes );
+		writeVarint( out, stepsInChunk );
+		for ( int column = 0; column < numColumns; column++ ) {
+			appendRun( column );
+			out.writeByte( startBits[column] );
+			writeVarint( out, numRuns[column] );
+			for ( int i = 0; i < numRuns[column]; i++ ) {
+				writeVarint( out, runs[column][i] );
+			}
+		}
+		out.flush( );
+
+		if ( numChunks == chunkOffsets.length ) {
+			int capacity = numChunks * 2;
+			chunkFirstSteps = Arrays.copyOf( chunkFirstSteps, capacity );
+			chunkOffsets = Arrays.copyOf( chunkOffsets, capacity );
+			chunkLengths = Arrays.copyOf( chunkLengths, capacity );
+			chunkFirstOne = Arrays.copyOf( chunkFirstOne, capacity );
+			chunkFirstZero = Arrays.copyOf( chunkFirstZero, capacity );
+		}
+
+		long offset = data.length( );
+		data.seek( offset );
+		data.write( bytes.toByteArray( ) );
+
+		chunkFirstSteps[numChunks] = numSteps - stepsInChunk;
+		chunkOffsets[numChunks] = offset;
+		chunkLengths[numChunks] = bytes.size( );
+		chunkFirstOne[numChunks] = firstOne.clone( );
+		chunkFirstZero[numChunks] = firstZero.clone( );
+		numChunks++;
+
+		Arrays.fill( numRuns, 0 );
+		Arrays.fill( firstOne, -1 );
+		Arrays.fill( firstZero, -1 );
+		stepsInChunk = 0;
+	}
+
+	private static void writeVarint( DataOutputStream out, int value ) throws IOException {
+		while ( ( value & ~0x7F ) != 0 ) {
+			out.writeByte( ( value & 0x7F ) | 0x80 );
+			value >>>= 7;
+		}
+		out.writeByte( value );
+	}
+
+
+	// query internals; chunk numChunks is the one still being recorded
+
+	private int chunkContaining( long step ) {
+		if ( numChunks == 0 || step >= numSteps - stepsInChunk ) {
+			return numChunks;
+		}
+		int index = Arrays.binarySearch( chunkFirstSteps, 0, numChunks, Math.max( 0, step ) );
+		return ( index >= 0 ) ? index : -index - 2;
+	}
+
+	private long chunkStart( int chunk ) {
+		return ( chunk < numChunks ) ? chunkFirstSteps[chunk] : numSteps - stepsInChunk;
+	}
+
+	private int firstWithBit( int chunk, int column, int bit ) {
+		if ( chunk < numChunks ) {
+			return ( bit == 1 ) ? chunkFirstOne[chunk][column] : chunkFirstZero[chunk][column];
+		}
+		return ( bit == 1 ) ? firstOne[column] : firstZero[column];
+	}
+
+	private Chunk readChunk( int chunk ) throws IOException {
+		if ( chunk == numChunks ) {
+			return currentChunk( );
+		}
+		if ( chunk == cachedChunk ) {
+			return cached;
+		}
+
+		byte[] bytes = new byte[chunkLengths[chunk]];
+		data.seek( chunkOffsets[chunk] );
+		data.readFully( bytes );
+
+		int[] position = new int[] { 0 };
+		Chunk decoded = new Chunk( );
+		decoded.firstStep = chunkFirstSteps[chunk];
+		decoded.steps = readVarint( bytes, position );
+		decoded.startBits = new int[numColumns];
+		decoded.numRuns = new int[numColumns];
+		decoded.runs = new int[numColumns][];
+		for ( int column = 0; column < numColumns; column++ ) {
+			decoded.startBits[column] = bytes[position[0]++];
+			decoded.numRuns[column] = readVarint( bytes, position );
+			decoded.runs[column] = new int[decoded.numRuns[column]];
+			for ( int i = 0; i < decoded.numRuns[column]; i++ ) {
+				decoded.runs[column][i] = readVarint( bytes, position );
+			}
+		}
+
+		cachedChunk = chunk;
+		cached = decoded;
+		return decoded;
+	}
+
+	// a snapshot of the chunk still being recorded, with its open runs closed
+	private Chunk currentChunk( ) {
+		Chunk decoded = new Chunk( );
+		decoded.firstStep = numSteps - stepsInChunk;
+		decoded.steps = stepsInChunk;
+		decoded.startBits = startBits.clone( );
+		decoded.numRuns = new int[numColumns];
+		decoded.runs = new int[numColumns][];
+		for ( int column = 0; column < numColumns; column++ ) {
+			int count = numRuns[column];
+			decoded.runs[column] = Arrays.copyOf( runs[column], count + 1 );
+			decoded.runs[column][count] = runLengths[column];
+			decoded.numRuns[column] = count + 1;
+		}
+		return decoded;
+	}
+
+	private static int readVarint( byte[] bytes, int[] position ) {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = bytes[position[0]++];
+			value |= ( b & 0x7F ) << shift;
+			shift += 7;
+		} while ( ( b & 0x80 ) != 0 );
+		return value;
+	}
+
+	private static int nextWithBit( Chunk chunk, int column, int bit, int from ) {
+		int runStart = 0;
+		int runBit = chunk.startBits[column];
+		for ( int i = 0; i < chunk.numRuns[column]; i++ ) {
+			int runEnd = runStart + chunk.runs[column][i];
+			if ( runBit == bit && runEnd > from ) {
+				return Math.max( from, runStart );
+			}
+			runStart = runEnd;
+			runBit ^= 1;
+		}
+		return -1;
+	}
+
+	private static int bitAt( Chunk chunk, int column, int offset ) {
+		int runStart = 0;
+		int runBit = chunk.startBits[column];
+		for ( int i = 0; i < chunk.numRuns[column]; i++ ) {
+			runStart += chunk.runs[column][i];
+			if ( offset < runStart ) {
+				return runBit;
+			}
+			runBit ^= 1;
+		}
+		return runBit;
+	}
+}
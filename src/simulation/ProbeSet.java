@@ -0,0 +1,191 @@
+package simulation;
+
+import java.awt.Point;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import state.ConnectionNet;
+import state.SimulationState;
+
+/**
+ * Named points to watch the pressure of, sampled into a preallocated
+ * array indexed by probe id so sampling every step allocates nothing.
+ *
+ * A probe is either one cell or a whole ConnectionNet; a net reads as the
+ * highest pressure on any of its points.
+ *
+ * Probe files have one probe per line, '#' starts a comment:
+ * <pre>
+ * carry   12 7
+ * clk_net net ff8000
+ * bus     netid 3
+ * </pre>
+ * A net is named by its colour, which must then be unique, or by its id.
+ */
+public class ProbeSet {
+	private ArrayList<String> names = new ArrayList<String>( );
+
+	// every probed cell, flattened; probe i owns [starts[i], starts[i+1])
+	private int[] xs = new int[16];
+	private int[] ys = new int[16];
+	private int[] starts = new int[] { 0 };
+	private int numPoints = 0;
+
+	private int[] values = new int[0];
+
+	public int addProbe( String name, int x, int y ) {
+		addPoint( x, y );
+		return endProbe( name );
+	}
+
+	public int addProbe( String name, ConnectionNet net ) {
+		for ( Point point : net.getPoints( ) ) {
+			addPoint( point.x, point.y );
+		}
+		return endProbe( name );
+	}
+
+	public int size( ) {
+		return names.size( );
+	}
+
+	public String getName( int probe ) {
+		return names.get( probe );
+	}
+
+	/**
+	 * Reads every probe's pressure from the state.
+	 */
+	public void sample( SimulationState state ) {
+		for ( int probe = 0; probe < values.length; probe++ ) {
+			int pressure = SimulationState.PRESSURE_NONE;
+			for ( int i = starts[probe]; i < starts[probe + 1]; i++ ) {
+				pressure = Math.max( pressure, state.getPressure( xs[i], ys[i] ) );
+			}
+			values[probe] = pressure;
+		}
+	}
+
+	/**
+	 * @return the pressure seen by the last sample
+	 */
+	public int getValue( int probe ) {
+		return values[probe];
+	}
+
+	/**
+	 * Checks every probed cell lies on the board.
+	 */
+	public void validate( SimulationState state ) {
+		for ( int probe = 0; probe < values.length; probe++ ) {
+			for ( int i = starts[probe]; i < starts[probe + 1]; i++ ) {
+				if ( xs[i] < 0 || ys[i] < 0 || xs[i] >= state.getWidth( ) || ys[i] >= state.getHeight( ) ) {
+					throw new IllegalArgumentException( "probe " + names.get( probe ) + " is off the board at ("
+						+ xs[i] + "," + ys[i] + ")" );
+				}
+			}
+		}
+	}
+
+	private void addPoint( int x, int y ) {
+		if ( numPoints == xs.length ) {
+			xs = Arrays.copyOf( xs, numPoints * 2 );
+			ys = Arrays.copyOf( ys, numPoints * 2 );
+		}
+		xs[numPoints] = x;
+		ys[numPoints] = y;
+		numPoints++;
+	}
+
+	private int endProbe( String name ) {
+		int id = names.size( );
+		names.add( name );
+		starts = Arrays.copyOf( starts, id + 2 );
+		starts[id + 1] = numPoints;
+		values = new int[id + 1];
+		return id;
+	}
+
+
+	// file format
+
+	public static ProbeSet load( File file, SimulationState state ) throws IOException {
+		FileReader reader = new FileReader( file );
+		try {
+			return parse( reader, state );
+		} finally {
+			reader.close( );
+		}
+	}
+
+	public static ProbeSet parse( Reader source, SimulationState state ) throws IOException {
+		BufferedReader reader = new BufferedReader( source );
+		ProbeSet probes = new ProbeSet( );
+
+		String line;
+		int lineNumber = 0;
+		while ( ( line = reader.readLine( ) ) != null ) {
+			lineNumber++;
+
+			int comment = line.indexOf( '#' );
+			if ( comment >= 0 ) {
+				line = line.substring( 0, comment );
+			}
+			line = line.trim( );
+			if ( line.length( ) == 0 ) {
+				continue;
+			}
+
+			String[] words = line.split( "\\s+" );
+			if ( words.length != 3 ) {
+				throw new IOException( "probe line " + lineNumber + ": expected name x y, name net rrggbb or name netid id" );
+			}
+
+			try {
+				if ( words[1].equals( "net" ) ) {
+					probes.addProbe( words[0], netColoured( state, Integer.parseInt( words[2], 16 ), words[2], lineNumber ) );
+				} else if ( words[1].equals( "netid" ) ) {
+					ConnectionNet net = state.getNet( Integer.parseInt( words[2] ) );
+					if ( net == null ) {
+						throw new IOException( "probe line " + lineNumber + ": no net " + words[2] );
+					}
+					probes.addProbe( words[0], net );
+				} else {
+					probes.addProbe( words[0], Integer.parseInt( words[1] ), Integer.parseInt( words[2] ) );
+				}
+			} catch ( NumberFormatException e ) {
+				throw new IOException( "probe line " + lineNumber + ": " + e.getMessage( ) );
+			}
+		}
+
+		try {
+			probes.validate( state );
+		} catch ( IllegalArgumentException e ) {
+			throw new IOException( e.getMessage( ) );
+		}
+		return probes;
+	}
+
+	// only bitmap nets have their colour as their id, so search by colour
+	private static ConnectionNet netColoured( SimulationState state, int rgb, String text, int lineNumber ) throws IOException {
+		ConnectionNet found = null;
+		for ( ConnectionNet net : state.getNets( ) ) {
+			if ( ( net.getColour( ) & 0xFFFFFF ) == ( rgb & 0xFFFFFF ) ) {
+				if ( found != null ) {
+					throw new IOException( "probe line " + lineNumber + ": nets " + found.getID( ) + " and " + net.getID( )
+						+ " are both coloured " + text + "; use netid" );
+				}
+				found = net;
+			}
+		}
+		if ( found == null ) {
+			throw new IOException( "probe line " + lineNumber + ": no net coloured " + text );
+		}
+		return found;
+	}
+}
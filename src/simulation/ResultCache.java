@@ -0,0 +1,167 @@
+package simulation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A directory of results named by the hash of whatever produced them.
+ *
+ * Entries are evicted least recently used first once the directory grows
+ * past its size bound. Use is tracked through each file's modification
+ * time, so the order survives restarts and is shared by every process
+ * using the directory; entries are written to a temporary file and
+ * renamed, so a reader never sees half an entry.
+ */
+public class ResultCache {
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	private static final String SUFFIX = ".result";
+
+	private File directory;
+	private long maxBytes;
+
+	// entry name -> size, least recently used first
+	private LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>( 16, 0.75f, true );
+	private long totalBytes = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	public ResultCache( File directory ) throws IOException {
+		this( directory, DEFAULT_MAX_BYTES );
+	}
+
+	public ResultCache( File directory, long maxBytes ) throws IOException {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+
+		if ( !directory.isDirectory( ) && !directory.mkdirs( ) ) {
+			throw new IOException( "cannot create cache directory " + directory );
+		}
+
+		File[] files = directory.listFiles( );
+		ArrayList<File> existing = new ArrayList<File>( );
+		for ( File file : files ) {
+			if ( file.getName( ).endsWith( SUFFIX ) ) {
+				existing.add( file );
+			}
+		}
+		Collections.sort( existing, new Comparator<File>( ) {
+			public int compare( File a, File b ) {
+				return Long.valueOf( a.lastModified( ) ).compareTo( b.lastModified( ) );
+			}
+		} );
+		for ( File file : existing ) {
+			entries.put( file.getName( ), file.length( ) );
+			totalBytes += file.length( );
+		}
+	}
+
+	public File getDirectory( ) {
+		return directory;
+	}
+
+	public synchronized long getTotalBytes( ) {
+		return totalBytes;
+	}
+
+	public synchronized int size( ) {
+		return entries.size( );
+	}
+
+	public synchronized long getHits( ) {
+		return hits;
+	}
+
+	public synchronized long getMisses( ) {
+		return misses;
+	}
+
+	/**
+	 * @return the stored result, or null if there is none
+	 */
+	public synchronized byte[] get( String key ) throws IOException {
+		String name = key + SUFFIX;
+		File file = new File( directory, name );
+		if ( !file.isFile( ) ) {
+			// evicted by another process, or never there
+			if ( entries.remove( name ) != null ) {
+				recount( );
+			}
+			misses++;
+			return null;
+		}
+
+		byte[] result = new byte[(int) file.length( )];
+		FileInputStream in = new FileInputStream( file );
+		try {
+			int read = 0;
+			while ( read < result.length ) {
+				int count = in.read( result, read, result.length - read );
+				if ( count < 0 ) {
+					throw new IOException( "cache entry " + name + " truncated" );
+				}
+				read += count;
+			}
+		} finally {
+			in.close( );
+		}
+
+		file.setLastModified( System.currentTimeMillis( ) );
+		if ( entries.put( name, (long) result.length ) == null ) {
+			totalBytes += result.length;
+		}
+		hits++;
+		return result;
+	}
+
+	public synchronized void put( String key, byte[] result ) throws IOException {
+		String name = key + SUFFIX;
+		File temporary = File.createTempFile( key, ".tmp", directory );
+		FileOutputStream out = new FileOutputStream( temporary );
+		try {
+			out.write( result );
+		} finally {
+			out.close( );
+		}
+
+		File file = new File( directory, name );
+		if ( file.exists( ) ) {
+			file.delete( );
+		}
+		if ( !temporary.renameTo( file ) ) {
+			temporary.delete( );
+			throw new IOException( "cannot store cache entry " + name );
+		}
+
+		Long previous = entries.put( name, (long) result.length );
+		totalBytes += result.length - ( ( previous != null ) ? previous : 0 );
+		evict( );
+	}
+
+	private void evict( ) {
+		Iterator<Map.Entry<String, Long>> eldest = entries.entrySet( ).iterator( );
+		// always keep the newest entry, even if it alone is over the bound
+		while ( totalBytes > maxBytes && entries.size( ) > 1 && eldest.hasNext( ) ) {
+			Map.Entry<String, Long> entry = eldest.next( );
+			new File( directory, entry.getKey( ) ).delete( );
+			totalBytes -= entry.getValue( );
+			eldest.remove( );
+		}
+	}
+
+	private void recount( ) {
+		totalBytes = 0;
+		for ( long size : entries.values( ) ) {
+			totalBytes += size;
+		}
+	}
+}
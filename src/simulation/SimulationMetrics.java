@@ -0,0 +1,159 @@
+package simulation;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Per-phase timing and work counters for the step loop.
+ *
+ * Only the simulation thread records; readers (JMX, JSON dumps) see a
+ * best-effort snapshot. A Simulator with no metrics attached pays a
+ * single null check per phase.
+ */
+public class SimulationMetrics implements SimulationMetricsMBean {
+	public enum Phase { CLEAR, FILL_SOURCE, FILL_VENT, FILL_SINK, SHIFT, REPAINT };
+
+	private Histogram[] phaseNanos = new Histogram[Phase.values( ).length];
+	private Histogram cellsPerFill = new Histogram( );
+	private Histogram shiftsPerStep = new Histogram( );
+
+	private long steps = 0;
+	private long shortCircuits = 0;
+	private long shuttleShifts = 0;
+	private long cellsVisited = 0;
+	private long startNanos;
+
+	private ObjectName registeredName = null;
+
+	public SimulationMetrics( ) {
+		for ( int i = 0; i < phaseNanos.length; i++ ) {
+			phaseNanos[i] = new Histogram( );
+		}
+		startNanos = System.nanoTime( );
+	}
+
+	// recording, called from the simulation thread
+
+	public void recordPhase( Phase phase, long nanos ) {
+		phaseNanos[phase.ordinal( )].record( nanos );
+	}
+
+	public void recordFill( long numCells ) {
+		cellsPerFill.record( numCells );
+		cellsVisited += numCells;
+	}
+
+	public void recordStep( int numShifts ) {
+		steps++;
+		shiftsPerStep.record( numShifts );
+		shuttleShifts += numShifts;
+	}
+
+	public void recordShortCircuit( ) {
+		shortCircuits++;
+	}
+
+	public void recordShortCircuits( int count ) {
+		shortCircuits += count;
+	}
+
+	// reading
+
+	public Histogram getPhaseHistogram( Phase phase ) {
+		return phaseNanos[phase.ordinal( )];
+	}
+
+	public Histogram getCellsPerFillHistogram( ) {
+		return cellsPerFill;
+	}
+
+	public Histogram getShiftsPerStepHistogram( ) {
+		return shiftsPerStep;
+	}
+
+	public long getSteps( ) {
+		return steps;
+	}
+
+	public double getStepsPerSecond( ) {
+		long elapsed = System.nanoTime( ) - startNanos;
+		if ( elapsed <= 0 ) {
+			return 0;
+		}
+		return steps * 1e9 / elapsed;
+	}
+
+	public long getShortCircuits( ) {
+		return shortCircuits;
+	}
+
+	public long getShuttleShifts( ) {
+		return shuttleShifts;
+	}
+
+	public long getCellsVisited( ) {
+		return cellsVisited;
+	}
+
+	public double getMeanPhaseNanos( String phase ) {
+		return getPhaseHistogram( Phase.valueOf( phase ) ).getMean( );
+	}
+
+	public void reset( ) {
+		for ( Histogram histogram : phaseNanos ) {
+			histogram.reset( );
+		}
+		cellsPerFill.reset( );
+		shiftsPerStep.reset( );
+		steps = 0;
+		shortCircuits = 0;
+		shuttleShifts = 0;
+		cellsVisited = 0;
+		startNanos = System.nanoTime( );
+	}
+
+	public String toJSON( ) {
+		StringBuilder json = new StringBuilder( );
+		json.append( "{\"steps\":" ).append( steps );
+		json.append( ",\"stepsPerSecond\":" ).append( getStepsPerSecond( ) );
+		json.append( ",\"shortCircuits\":" ).append( shortCircuits );
+		json.append( ",\"shuttleShifts\":" ).append( shuttleShifts );
+		json.append( ",\"cellsVisited\":" ).append( cellsVisited );
+
+		json.append( ",\"phaseNanos\":{" );
+		for ( Phase phase : Phase.values( ) ) {
+			if ( phase.ordinal( ) > 0 ) {
+				json.append( ',' );
+			}
+			json.append( '"' ).append( phase.name( ) ).append( "\":" );
+			getPhaseHistogram( phase ).appendJSON( json );
+		}
+		json.append( '}' );
+
+		json.append( ",\"cellsPerFill\":" );
+		cellsPerFill.appendJSON( json );
+		json.append( ",\"shiftsPerStep\":" );
+		shiftsPerStep.appendJSON( json );
+		json.append( '}' );
+
+		return json.toString( );
+	}
+
+	// JMX
+
+	public void register( String name ) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer( );
+		registeredName = new ObjectName( "steamos:type=SimulationMetrics,name=" + ObjectName.quote( name ) );
+		server.registerMBean( this, registeredName );
+	}
+
+	public void unregister( ) throws JMException {
+		if ( registeredName != null ) {
+			ManagementFactory.getPlatformMBeanServer( ).unregisterMBean( registeredName );
+			registeredName = null;
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package simulation;
+
+/**
+ * JMX view of a running simulation's metrics.
+ */
+public interface SimulationMetricsMBean {
+	public long getSteps( );
+
+	public double getStepsPerSecond( );
+
+	public long getShortCircuits( );
+
+	public long getShuttleShifts( );
+
+	public long getCellsVisited( );
+
+	public double getMeanPhaseNanos( String phase );
+
+	public String toJSON( );
+
+	public void reset( );
+}
@@ -1,36 +1,114 @@
 package simulation;
 
-import java.awt.Point;
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
 
+import javax.management.JMException;
+
+import state.ShortCircuitBuffer;
 import state.ShortCircuitException;
-import state.ShuttleShift;
 import state.SimulationState;
+import view.FrameCapture;
 import view.Viewer;
 
 public class SimulationThread extends Thread {
 	private SimulationState state;
+	private Simulator simulator;
 	private Viewer viewer;
 	
 	private int delay = 10;
 	private long iterations = 0;
-	private boolean running;
+	private volatile boolean running;
+	
+	// event-driven mode parks the thread once the board settles
+	private boolean eventDriven = true;
+	private final Object wakeLock = new Object( );
+	private boolean stimulusPending = false;
+	
+	private long activeNanos = 0;
+	private long idleNanos = 0;
+	private long numParks = 0;
+	
+	private FrameCapture capture = null;
 	
 	public SimulationThread( Viewer viewer, SimulationState state ) {
 		this.viewer = viewer;
 		this.state  = state;
+		this.simulator = new Simulator( state );
+		this.simulator.setShortCircuitBuffer( new ShortCircuitBuffer( ) );
+		
+		if ( Boolean.getBoolean( "steamos.metrics" ) ) {
+			enableMetrics( );
+		}
+		if ( System.getProperty( "steamos.capture" ) != null ) {
+			enableCapture( new File( System.getProperty( "steamos.capture" ) ), Integer.getInteger( "steamos.capture.every", 1 ) );
+		}
+	}
+	
+	/**
+	 * Records every Nth step to a PNG directory or animated GIF in the
+	 * background. Frames are dropped rather than slowing the simulation.
+	 */
+	public void enableCapture( File output, int interval ) {
+		FrameCapture capture = new FrameCapture( state, output, interval );
+		capture.setDropFrames( true );
+		try {
+			capture.start( );
+			this.capture = capture;
+		} catch ( IOException e ) {
+			System.err.println( "Could not start capture: " + e );
+		}
+	}
+	
+	/**
+	 * Starts recording step metrics and publishes them over JMX.
+	 */
+	public SimulationMetrics enableMetrics( ) {
+		if ( simulator.getMetrics( ) == null ) {
+			SimulationMetrics metrics = new SimulationMetrics( );
+			try {
+				metrics.register( getName( ) );
+			} catch ( JMException e ) {
+				System.err.println( "Could not register metrics: " + e );
+			}
+			simulator.setMetrics( metrics );
+		}
+		return simulator.getMetrics( );
 	}
 	
 	public void update( ) {
 		viewer.clearError( );
 		try {
 			stepSimulation( );
+			
+			ShortCircuitBuffer shortCircuits = simulator.getShortCircuitBuffer( );
+			if ( shortCircuits.getTotal( ) > 0 ) {
+				viewer.showErrors( shortCircuits );
+			}
 		} catch ( ShortCircuitException e ) {
 			viewer.showError( e.toString( ), e.getLocation( ) );
 		}
 		
+		if ( capture != null ) {
+			try {
+				capture.capture( iterations );
+			} catch ( IOException e ) {
+				System.err.println( "Capture stopped: " + e );
+				capture = null;
+			} catch ( InterruptedException e ) {
+				Thread.currentThread( ).interrupt( );
+			}
+		}
+		
 		if ( viewer.getGraphics() != null ) {
+			SimulationMetrics metrics = simulator.getMetrics( );
+			long paintStart = ( metrics != null ) ? System.nanoTime( ) : 0;
+			
 			viewer.paint( viewer.getGraphics() );
+			
+			if ( metrics != null ) {
+				metrics.recordPhase( SimulationMetrics.Phase.REPAINT, System.nanoTime( ) - paintStart );
+			}
 		}
 	}
 	
@@ -38,8 +116,56 @@ public class SimulationThread extends Thread {
 		return iterations;
 	}
 	
+	public long getActiveNanos( ) {
+		return activeNanos;
+	}
+	
+	public long getIdleNanos( ) {
+		return idleNanos;
+	}
+	
+	public long getNumParks( ) {
+		return numParks;
+	}
+	
+	public boolean isEventDriven( ) {
+		return eventDriven;
+	}
+	
+	public void setEventDriven( boolean eventDriven ) {
+		this.eventDriven = eventDriven;
+		stimulate( );
+	}
+	
+	public Simulator getSimulator( ) {
+		return simulator;
+	}
+	
+	/**
+	 * Wakes the thread if it is parked on a settled board. Call this after
+	 * changing any cell from outside the simulation.
+	 */
+	public void stimulate( ) {
+		synchronized ( wakeLock ) {
+			stimulusPending = true;
+			wakeLock.notifyAll( );
+		}
+	}
+	
+	private void awaitStimulus( ) throws InterruptedException {
+		long parkStart = System.nanoTime( );
+		synchronized ( wakeLock ) {
+			numParks++;
+			while ( !stimulusPending && running && eventDriven ) {
+				wakeLock.wait( );
+			}
+			stimulusPending = false;
+		}
+		idleNanos += System.nanoTime( ) - parkStart;
+	}
+	
 	public void run() {
-		int settleIterations = 3;
+		int settleIterations = TruthTableSweep.DEFAULT_SETTLE_STEPS;
 		
 		running = true;
 		try {
@@ -64,39 +190,49 @@ public class SimulationThread extends Thread {
 				inputVal++;
 			}
 			
+			if ( simulator.getMetrics( ) != null ) {
+				System.out.println( simulator.getMetrics( ).toJSON( ) );
+			}
+			
 			// enable user input
 			viewer.enableInput( );
 			
-			// iterate forever
+			// iterate forever, parking whenever nothing can change
 			while ( running ) {
+				long stepStart = System.nanoTime( );
 				update( );
 				iterations++;
+				activeNanos += System.nanoTime( ) - stepStart;
 				sleep( delay );
+				
+				if ( eventDriven && simulator.isSettled( ) ) {
+					awaitStimulus( );
+				}
 			}
 			
 		} catch ( InterruptedException e ) {
 		}
+		
+		if ( capture != null ) {
+			try {
+				capture.finish( );
+			} catch ( IOException e ) {
+				System.err.println( "Capture failed: " + e );
+			} catch ( InterruptedException e ) {
+			}
+		}
     }	
 	
 	public void halt( ) {
 		running = false;
+		stimulate( );
 	}
 	
 	
 	// simulator guts
 	
 	private void stepSimulation( ) throws ShortCircuitException {
-		// set inputs to sources/sinks first.
-		
-		
-		state.clearChannels( );
-		
-		ArrayList<ShuttleShift> shuttlePressurePoints = new ArrayList<ShuttleShift>( );
-		state.fillPressure( SimulationState.SOURCE, SimulationState.PRESSURE_POS , shuttlePressurePoints );
-		state.fillPressure( SimulationState.VENT  , SimulationState.PRESSURE_VENT, shuttlePressurePoints );
-		state.fillPressure( SimulationState.SINK  , SimulationState.PRESSURE_NEG , shuttlePressurePoints );
-		
-		state.shiftShuttles( shuttlePressurePoints );
+		simulator.step( );
 	}
 	
 	
@@ -107,81 +243,25 @@ public class SimulationThread extends Thread {
 		int inputSize  = (int) Math.pow( 2, inputBits );
 		
 		if ( inputVal < inputSize ) {
-			boolean[] bitValues = intToBinBoolean( inputVal, inputBits );
-			
-			for ( int i = 0; i < bitValues.length; i++ ) {
-				if ( bitValues[i] ) {
-					System.out.print( " 1 |" );
-				} else {
-					System.out.print( " 0 |" );
-				}
-			}
+			boolean[] bitValues = TruthTableSweep.inputVector( inputVal, inputBits );
 			
+			System.out.print( TruthTableSweep.formatBits( bitValues ) );
 			System.out.print( "|" );
 			setInputs( bitValues );
 		}
 	}
 	
 	public void printTruthTableOutputs( ) {
-		boolean[] outputValues = getOutputs(  );
-		for ( int i = 0; i < outputValues.length; i++ ) {
-			if ( outputValues[i] ) {
-				System.out.print( " 1 |" );
-			} else {
-				System.out.print( " 0 |" );
-			}
-		}
-		
-		System.out.println( );
-	}
-	
-	private boolean[] intToBinBoolean( int inputVal, int size ) {
-		String binaryString = Integer.toBinaryString( inputVal );
-		int padding = size - binaryString.length( );
-		
-		boolean[] boolString = new boolean[ size ];
-		
-		for ( int i = 0; i < binaryString.length(); i++ ) {
-			if ( binaryString.charAt( i ) == '1' ) {
-				boolString[padding+i] = true;
-			} else {
-				boolString[padding+i] = false;
-			}
-		}
-		
-		return boolString;
+		System.out.println( TruthTableSweep.formatBits( getOutputs( ) ) );
 	}
 	
 	public void setInputs( boolean[] inputValues  ) {
-		ArrayList<Point> inputPoints = state.getInputs();
-		
-		int i = 0;
-		for ( Point inputPoint : inputPoints ) {
-			if ( inputValues[i] ) {
-				state.setCell( inputPoint, SimulationState.SOURCE );
-			} else {
-				state.setCell( inputPoint, SimulationState.SINK );
-			}
-			i++;
-		}
+		simulator.setInputs( inputValues );
+		stimulate( );
 	}
 
 	public boolean[] getOutputs( ) {
-		
-		ArrayList<Point> outputPoints = state.getOutputs();
-		
-		boolean[] outputValues = new boolean[outputPoints.size()];
-		int i = 0;
-		for ( Point outputPoint : outputPoints ) {
-			if ( state.getPressure( outputPoint ) == SimulationState.PRESSURE_POS ) {
-				outputValues[i] = true;
-			} else {
-				outputValues[i] = false;
-			}
-			i++;
-		}
-		
-		return outputValues;
+		return simulator.getOutputs( );
 	}
 
 	
@@ -0,0 +1,343 @@
+package simulation;
+
+import java.awt.Point;
+import java.util.ArrayList;
+
+import simulation.SimulationMetrics.Phase;
+import state.ShortCircuitBuffer;
+import state.ShortCircuitException;
+import state.ShuttleShift;
+import state.SimulationState;
+
+/**
+ * The stepping core of the simulator, without any viewer attached.
+ *
+ * A step is a pure function of the cell layout: if a step shifts no
+ * shuttles and nobody touched the layout since the previous step, the
+ * next step will fill exactly the same pressures and shift nothing, so
+ * the board is settled until something changes it from outside.
+ *
+ * Sub-circuit instances placed on the board are stepped through an
+ * InstanceEvaluator while they are sealed off from the rest of it, so
+ * identical instances in the same state are simulated once.
+ */
+public class Simulator {
+	private SimulationState state;
+
+	private ArrayList<ShuttleShift> shuttlePressurePoints = new ArrayList<ShuttleShift>( );
+
+	private long steps = 0;
+	private long lastRevision = -1;
+	private int lastShifts = 0;
+	private boolean settled = false;
+	private ShortCircuitException lastShortCircuit = null;
+
+	private SimulationMetrics metrics = null;
+	private ShortCircuitBuffer shortCircuits = null;
+
+	private boolean memoizeInstances = true;
+	private InstanceEvaluator instances = null;
+
+	public Simulator( SimulationState state ) {
+		this.state = state;
+	}
+
+	public SimulationMetrics getMetrics( ) {
+		return metrics;
+	}
+
+	/**
+	 * Attaches metrics to record into, or null to turn instrumentation off.
+	 */
+	public void setMetrics( SimulationMetrics metrics ) {
+		this.metrics = metrics;
+	}
+
+	public ShortCircuitBuffer getShortCircuitBuffer( ) {
+		return shortCircuits;
+	}
+
+	/**
+	 * Collects every short circuit of a step into the buffer instead of
+	 * throwing the first one; the step then completes and shuttles still
+	 * shift. Null goes back to throwing.
+	 */
+	public void setShortCircuitBuffer( ShortCircuitBuffer shortCircuits ) {
+		this.shortCircuits = shortCircuits;
+	}
+
+	/**
+	 * Steps placed instances by their memoized behaviour, the default, or
+	 * fills them cell by cell with the rest of the board.
+	 */
+	public void setMemoizeInstances( boolean memoizeInstances ) {
+		this.memoizeInstances = memoizeInstances;
+		if ( !memoizeInstances && instances != null ) {
+			instances.flatten( );
+			instances = null;
+		}
+	}
+
+	/**
+	 * @return the evaluator stepping the board's instances, or null if
+	 *         there are none or they are filled with the board
+	 */
+	public InstanceEvaluator getInstanceEvaluator( ) {
+		return instances;
+	}
+
+	public SimulationState getState( ) {
+		return state;
+	}
+
+	public long getNumSteps( ) {
+		return steps;
+	}
+
+	public int getLastShifts( ) {
+		return lastShifts;
+	}
+
+	/**
+	 * @return the short the last step ran into, or null if it had none;
+	 *         a settled board repeats it without stepping
+	 */
+	public ShortCircuitException getLastShortCircuit( ) {
+		return lastShortCircuit;
+	}
+
+	/**
+	 * @return true if stepping again cannot change anything
+	 */
+	public boolean isSettled( ) {
+		return settled && state.getRevision( ) == lastRevision;
+	}
+
+	/**
+	 * Runs one step of the simulation.
+	 * @return true if the step may have changed pressures or shuttles
+	 */
+	public boolean step( ) throws ShortCircuitException {
+		long revisionBefore = state.getRevision( );
+		boolean layoutUnchanged = ( revisionBefore == lastRevision );
+
+		steps++;
+		if ( metrics != null ) {
+			return !instrumentedStep( layoutUnchanged );
+		}
+
+		state.clearChannels( );
+		shuttlePressurePoints.clear( );
+		if ( shortCircuits != null ) {
+			shortCircuits.clear( );
+		}
+		boolean byBehaviour = prepareInstances( );
+
+		try {
+			try {
+				fillAll( );
+			} catch ( ShortCircuitException e ) {
+				if ( !byBehaviour ) {
+					throw e;
+				}
+				byBehaviour = false;
+				refillFlat( );
+			}
+		} catch ( ShortCircuitException e ) {
+			shortCircuited( e, revisionBefore, layoutUnchanged );
+			throw e;
+		}
+
+		int numShifts = state.shiftShuttles( shuttlePressurePoints );
+		if ( byBehaviour ) {
+			numShifts += instances.apply( );
+		}
+		shifted( numShifts, layoutUnchanged );
+
+		return !settled;
+	}
+
+	/**
+	 * Steps until the board settles. A short circuit that persists on the
+	 * settled board is thrown; one that clears itself is not.
+	 * @return the number of steps taken, or -1 if still changing after maxSteps
+	 */
+	public int runUntilSettled( int maxSteps ) throws ShortCircuitException {
+		for ( int i = 0; i < maxSteps; i++ ) {
+			if ( isSettled( ) ) {
+				if ( lastShortCircuit != null ) {
+					throw lastShortCircuit;
+				}
+				return i;
+			}
+			try {
+				step( );
+			} catch ( ShortCircuitException e ) {
+				if ( isSettled( ) ) {
+					throw e;
+				}
+			}
+		}
+
+		if ( isSettled( ) && lastShortCircuit != null ) {
+			throw lastShortCircuit;
+		}
+		return isSettled( ) ? maxSteps : -1;
+	}
+
+	// same as step, timing each phase
+	private boolean instrumentedStep( boolean layoutUnchanged ) throws ShortCircuitException {
+		long revisionBefore = state.getRevision( );
+
+		long phaseStart = System.nanoTime( );
+		state.clearChannels( );
+		shuttlePressurePoints.clear( );
+		if ( shortCircuits != null ) {
+			shortCircuits.clear( );
+		}
+		phaseStart = endPhase( Phase.CLEAR, phaseStart );
+		boolean byBehaviour = prepareInstances( );
+
+		try {
+			try {
+				phaseStart = instrumentedFill( Phase.FILL_SOURCE, SimulationState.SOURCE, SimulationState.PRESSURE_POS , phaseStart );
+				phaseStart = instrumentedFill( Phase.FILL_VENT  , SimulationState.VENT  , SimulationState.PRESSURE_VENT, phaseStart );
+				phaseStart = instrumentedFill( Phase.FILL_SINK  , SimulationState.SINK  , SimulationState.PRESSURE_NEG , phaseStart );
+			} catch ( ShortCircuitException e ) {
+				if ( !byBehaviour ) {
+					throw e;
+				}
+				byBehaviour = false;
+				refillFlat( );
+				phaseStart = System.nanoTime( );
+			}
+		} catch ( ShortCircuitException e ) {
+			metrics.recordShortCircuit( );
+			metrics.recordStep( 0 );
+			shortCircuited( e, revisionBefore, layoutUnchanged );
+			throw e;
+		}
+
+		if ( shortCircuits != null && shortCircuits.getTotal( ) > 0 ) {
+			metrics.recordShortCircuits( shortCircuits.getTotal( ) );
+		}
+
+		int numShifts = state.shiftShuttles( shuttlePressurePoints );
+		if ( byBehaviour ) {
+			numShifts += instances.apply( );
+		}
+		endPhase( Phase.SHIFT, phaseStart );
+		metrics.recordStep( numShifts );
+		shifted( numShifts, layoutUnchanged );
+
+		return settled;
+	}
+
+	private long instrumentedFill( Phase phase, int entryType, int pressureType, long phaseStart ) throws ShortCircuitException {
+		long visitedBefore = state.getCellsVisited( );
+		try {
+			fill( entryType, pressureType );
+		} finally {
+			metrics.recordFill( state.getCellsVisited( ) - visitedBefore );
+		}
+		return endPhase( phase, phaseStart );
+	}
+
+	private boolean prepareInstances( ) {
+		if ( !memoizeInstances || state.getInstances( ).isEmpty( ) ) {
+			return false;
+		}
+		if ( isSettled( ) && lastShortCircuit != null ) {
+			// it will short again, and a flat fill saves filling twice
+			return false;
+		}
+		if ( instances == null || instances.size( ) != state.getInstances( ).size( ) ) {
+			instances = new InstanceEvaluator( state );
+		}
+		return instances.prepare( );
+	}
+
+	private void fillAll( ) throws ShortCircuitException {
+		fill( SimulationState.SOURCE, SimulationState.PRESSURE_POS  );
+		fill( SimulationState.VENT  , SimulationState.PRESSURE_VENT );
+		fill( SimulationState.SINK  , SimulationState.PRESSURE_NEG  );
+	}
+
+	/*
+	 * The instances can't short, so the host did: fill again with them,
+	 * so the aborted step leaves pressure where a flat fill would have.
+	 * This throws the same short.
+	 */
+	private void refillFlat( ) throws ShortCircuitException {
+		instances.flatten( );
+		state.clearChannels( );
+		shuttlePressurePoints.clear( );
+		fillAll( );
+	}
+
+	private void fill( int entryType, int pressureType ) throws ShortCircuitException {
+		if ( shortCircuits != null ) {
+			state.fillPressure( entryType, pressureType, shuttlePressurePoints, shortCircuits );
+		} else {
+			state.fillPressure( entryType, pressureType, shuttlePressurePoints );
+		}
+	}
+
+	private long endPhase( Phase phase, long phaseStart ) {
+		long now = System.nanoTime( );
+		metrics.recordPhase( phase, now - phaseStart );
+		return now;
+	}
+
+	private void shortCircuited( ShortCircuitException e, long revisionBefore, boolean layoutUnchanged ) {
+		// a short aborts the step before shuttles move, so it repeats until the layout changes
+		lastShortCircuit = e;
+		lastShifts = 0;
+		lastRevision = revisionBefore;
+		settled = layoutUnchanged;
+	}
+
+	private void shifted( int numShifts, boolean layoutUnchanged ) {
+		// in collecting mode the step completes even with shorts
+		if ( shortCircuits != null && shortCircuits.size( ) > 0 ) {
+			lastShortCircuit = shortCircuits.toException( 0 );
+		} else {
+			lastShortCircuit = null;
+		}
+		lastShifts = numShifts;
+		lastRevision = state.getRevision( );
+		settled = ( numShifts == 0 && layoutUnchanged );
+	}
+
+	public void setInputs( boolean[] inputValues ) {
+		ArrayList<Point> inputPoints = state.getInputs();
+
+		int i = 0;
+		for ( Point inputPoint : inputPoints ) {
+			if ( inputValues[i] ) {
+				state.setCell( inputPoint, SimulationState.SOURCE );
+			} else {
+				state.setCell( inputPoint, SimulationState.SINK );
+			}
+			i++;
+		}
+	}
+
+	public boolean[] getOutputs( ) {
+		boolean[] outputValues = new boolean[state.getOutputs().size()];
+		readOutputs( outputValues );
+		return outputValues;
+	}
+
+	/**
+	 * Fills in the output values without allocating, for sampling every step.
+	 */
+	public void readOutputs( boolean[] outputValues ) {
+		ArrayList<Point> outputPoints = state.getOutputs();
+
+		for ( int i = 0; i < outputValues.length; i++ ) {
+			Point outputPoint = outputPoints.get( i );
+			outputValues[i] = ( state.getPressure( outputPoint.x, outputPoint.y ) == SimulationState.PRESSURE_POS );
+		}
+	}
+}
@@ -0,0 +1,307 @@
+package simulation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * A schedule of input values over simulation steps, one waveform per
+ * board input (in the order of SimulationState.getInputs).
+ *
+ * Stimulus files are line based, '#' starts a comment:
+ * <pre>
+ * steps 400
+ * const  0 1
+ * clock  1 period 40 offset 0 high 20
+ * vector 2 0:0 50:1 120:0
+ * random 3 seed 42 every 25
+ * at 200 1010
+ * </pre>
+ * "at" lines set every input at once from a bit string, overriding the
+ * waveforms above from that step onwards until the next "at" line.
+ */
+public class Stimulus {
+
+	public interface Waveform {
+		public boolean valueAt( long step );
+	}
+
+	public static class Constant implements Waveform {
+		private boolean value;
+
+		public Constant( boolean value ) {
+			this.value = value;
+		}
+
+		public boolean valueAt( long step ) {
+			return value;
+		}
+	}
+
+	public static class Clock implements Waveform {
+		private long period;
+		private long offset;
+		private long high;
+
+		public Clock( long period, long offset, long high ) {
+			if ( period <= 0 || high < 0 || high > period ) {
+				throw new IllegalArgumentException( "bad clock: period " + period + " high " + high );
+			}
+			this.period = period;
+			this.offset = offset;
+			this.high = high;
+		}
+
+		public boolean valueAt( long step ) {
+			if ( step < offset ) {
+				return false;
+			}
+			return ( ( step - offset ) % period ) < high;
+		}
+	}
+
+	public static class Vector implements Waveform {
+		// sorted change points; value holds from its step until the next one
+		private long[] steps;
+		private boolean[] values;
+
+		public Vector( long[] steps, boolean[] values ) {
+			for ( int i = 1; i < steps.length; i++ ) {
+				if ( steps[i] <= steps[i-1] ) {
+					throw new IllegalArgumentException( "vector steps must increase: " + steps[i] );
+				}
+			}
+			this.steps = steps;
+			this.values = values;
+		}
+
+		public boolean valueAt( long step ) {
+			int index = Arrays.binarySearch( steps, step );
+			if ( index < 0 ) {
+				index = -index - 2;
+			}
+			return ( index >= 0 ) ? values[index] : false;
+		}
+	}
+
+	public static class RandomBits implements Waveform {
+		private long seed;
+		private long every;
+
+		public RandomBits( long seed, long every ) {
+			if ( every <= 0 ) {
+				throw new IllegalArgumentException( "bad random interval: " + every );
+			}
+			this.seed = seed;
+			this.every = every;
+		}
+
+		public boolean valueAt( long step ) {
+			// hash the interval number so any step can be asked for in any order
+			long z = seed + ( step / every ) * 0x9E3779B97F4A7C15L;
+			z = ( z ^ ( z >>> 30 ) ) * 0xBF58476D1CE4E5B9L;
+			z = ( z ^ ( z >>> 27 ) ) * 0x94D049BB133111EBL;
+			return ( ( z ^ ( z >>> 31 ) ) & 1 ) != 0;
+		}
+	}
+
+	private Waveform[] waveforms;
+	private long numSteps;
+
+	// "at" overrides: from overrideSteps[i], every input takes overrideValues[i]
+	private long[] overrideSteps = new long[0];
+	private boolean[][] overrideValues = new boolean[0][];
+
+	public Stimulus( int numInputs, long numSteps ) {
+		this.waveforms = new Waveform[numInputs];
+		this.numSteps = numSteps;
+
+		for ( int i = 0; i < numInputs; i++ ) {
+			waveforms[i] = new Constant( false );
+		}
+	}
+
+	public int getNumInputs( ) {
+		return waveforms.length;
+	}
+
+	public long getNumSteps( ) {
+		return numSteps;
+	}
+
+	public void setNumSteps( long numSteps ) {
+		this.numSteps = numSteps;
+	}
+
+	public void setWaveform( int input, Waveform waveform ) {
+		waveforms[input] = waveform;
+	}
+
+	public Waveform getWaveform( int input ) {
+		return waveforms[input];
+	}
+
+	public void addVector( long step, boolean[] values ) {
+		if ( values.length != waveforms.length ) {
+			throw new IllegalArgumentException( "vector has " + values.length + " bits, board has " + waveforms.length + " inputs" );
+		}
+		int count = overrideSteps.length;
+		if ( count > 0 && step <= overrideSteps[count-1] ) {
+			throw new IllegalArgumentException( "vectors must be in step order: " + step );
+		}
+
+		overrideSteps  = Arrays.copyOf( overrideSteps, count + 1 );
+		overrideValues = Arrays.copyOf( overrideValues, count + 1 );
+		overrideSteps[count]  = step;
+		overrideValues[count] = values.clone( );
+	}
+
+	/**
+	 * Fills in the input values for a step, without allocating.
+	 */
+	public void valuesAt( long step, boolean[] values ) {
+		int override = Arrays.binarySearch( overrideSteps, step );
+		if ( override < 0 ) {
+			override = -override - 2;
+		}
+
+		if ( override >= 0 ) {
+			System.arraycopy( overrideValues[override], 0, values, 0, waveforms.length );
+		} else {
+			for ( int i = 0; i < waveforms.length; i++ ) {
+				values[i] = waveforms[i].valueAt( step );
+			}
+		}
+	}
+
+
+	// file format
+
+	public static Stimulus load( File file, int numInputs ) throws IOException {
+		FileReader reader = new FileReader( file );
+		try {
+			return parse( reader, numInputs );
+		} finally {
+			reader.close( );
+		}
+	}
+
+	public static Stimulus parse( Reader source, int numInputs ) throws IOException {
+		BufferedReader reader = new BufferedReader( source );
+		Stimulus stimulus = new Stimulus( numInputs, 0 );
+		long lastStep = 0;
+
+		String line;
+		int lineNumber = 0;
+		while ( ( line = reader.readLine( ) ) != null ) {
+			lineNumber++;
+
+			int comment = line.indexOf( '#' );
+			if ( comment >= 0 ) {
+				line = line.substring( 0, comment );
+			}
+			line = line.trim( );
+			if ( line.length( ) == 0 ) {
+				continue;
+			}
+
+			String[] words = line.split( "\\s+" );
+			try {
+				lastStep = Math.max( lastStep, parseLine( stimulus, words ) );
+			} catch ( IllegalArgumentException e ) {
+				// also catches NumberFormatException
+				throw new IOException( "stimulus line " + lineNumber + ": " + e.getMessage( ) );
+			} catch ( ArrayIndexOutOfBoundsException e ) {
+				throw new IOException( "stimulus line " + lineNumber + ": missing arguments to " + words[0] );
+			}
+		}
+
+		if ( stimulus.getNumSteps( ) == 0 ) {
+			stimulus.setNumSteps( lastStep + 1 );
+		}
+
+		return stimulus;
+	}
+
+	// returns the last step the line mentions, for the default run length
+	private static long parseLine( Stimulus stimulus, String[] words ) {
+		String command = words[0];
+
+		if ( command.equals( "steps" ) ) {
+			stimulus.setNumSteps( Long.parseLong( words[1] ) );
+			return 0;
+		} else if ( command.equals( "at" ) ) {
+			long step = Long.parseLong( words[1] );
+			stimulus.addVector( step, parseBits( words[2] ) );
+			return step;
+		}
+
+		int input = Integer.parseInt( words[1] );
+		if ( input < 0 || input >= stimulus.getNumInputs( ) ) {
+			throw new IllegalArgumentException( "no input " + input + ", board has " + stimulus.getNumInputs( ) );
+		}
+
+		if ( command.equals( "const" ) ) {
+			stimulus.setWaveform( input, new Constant( parseBit( words[2] ) ) );
+			return 0;
+		} else if ( command.equals( "clock" ) ) {
+			long period = option( words, "period", -1 );
+			long offset = option( words, "offset", 0 );
+			long high   = option( words, "high", period / 2 );
+			stimulus.setWaveform( input, new Clock( period, offset, high ) );
+			return offset + period;
+		} else if ( command.equals( "vector" ) ) {
+			long[] steps = new long[words.length - 2];
+			boolean[] values = new boolean[words.length - 2];
+			for ( int i = 2; i < words.length; i++ ) {
+				int colon = words[i].indexOf( ':' );
+				if ( colon < 0 ) {
+					throw new IllegalArgumentException( "expected step:value, got " + words[i] );
+				}
+				steps[i-2]  = Long.parseLong( words[i].substring( 0, colon ) );
+				values[i-2] = parseBit( words[i].substring( colon + 1 ) );
+			}
+			stimulus.setWaveform( input, new Vector( steps, values ) );
+			return ( steps.length > 0 ) ? steps[steps.length - 1] : 0;
+		} else if ( command.equals( "random" ) ) {
+			long seed  = option( words, "seed", 0 );
+			long every = option( words, "every", 1 );
+			stimulus.setWaveform( input, new RandomBits( seed, every ) );
+			return 0;
+		}
+
+		throw new IllegalArgumentException( "unknown command " + command );
+	}
+
+	private static long option( String[] words, String name, long defaultValue ) {
+		for ( int i = 2; i < words.length - 1; i++ ) {
+			if ( words[i].equals( name ) ) {
+				return Long.parseLong( words[i+1] );
+			}
+		}
+		if ( defaultValue < 0 ) {
+			throw new IllegalArgumentException( "missing " + name );
+		}
+		return defaultValue;
+	}
+
+	private static boolean parseBit( String word ) {
+		if ( word.equals( "1" ) ) {
+			return true;
+		} else if ( word.equals( "0" ) ) {
+			return false;
+		}
+		throw new IllegalArgumentException( "expected 0 or 1, got " + word );
+	}
+
+	private static boolean[] parseBits( String word ) {
+		boolean[] values = new boolean[word.length( )];
+		for ( int i = 0; i < values.length; i++ ) {
+			values[i] = parseBit( word.substring( i, i + 1 ) );
+		}
+		return values;
+	}
+}
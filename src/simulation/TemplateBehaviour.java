@@ -0,0 +1,177 @@
+package simulation;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import state.ChunkedCellGrid;
+import state.CircuitTemplate;
+import state.ShortCircuitException;
+import state.SimulationState;
+
+/**
+ * One step of a CircuitTemplate, memoized.
+ *
+ * Once the pressures are cleared, a step of a sealed-off area depends on
+ * nothing but its cells, so the cells are the key: every instance of the
+ * template with the same shuttle positions and input drives reuses one
+ * simulation. Results are kept in a bounded LRU cache.
+ */
+public class TemplateBehaviour {
+	public static final int DEFAULT_CACHE_SIZE = 4096;
+	// larger templates are keyed by too many cells to be worth it
+	public static final int MAX_CELLS = 1 << 16;
+
+	/**
+	 * What a step does to an instance, relative to its top left corner.
+	 */
+	public static class Step {
+		private boolean shorts;
+		private int numShifts;
+		// (offset << 4) | new cell, then (offset << 2) | pressure
+		private int[] cellChanges;
+		private int[] pressures;
+
+		/**
+		 * @return true if the step short circuits, which a flat fill must
+		 *         reproduce on the whole board
+		 */
+		public boolean shorts( ) {
+			return shorts;
+		}
+
+		public int getNumShifts( ) {
+			return numShifts;
+		}
+	}
+
+	private CircuitTemplate template;
+	private int width, height;
+
+	// a board holding just the template, reused for every miss
+	private SimulationState scratch;
+	private Simulator simulator;
+
+	private LinkedHashMap<ByteBuffer, Step> cache;
+	private long hits = 0;
+	private long misses = 0;
+
+	public TemplateBehaviour( CircuitTemplate template ) {
+		this( template, DEFAULT_CACHE_SIZE );
+	}
+
+	public TemplateBehaviour( CircuitTemplate template, final int cacheSize ) {
+		this.template = template;
+		this.width = template.getWidth( );
+		this.height = template.getHeight( );
+		this.cache = new LinkedHashMap<ByteBuffer, Step>( 16, 0.75f, true ) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry( Map.Entry<ByteBuffer, Step> eldest ) {
+				return size( ) > cacheSize;
+			}
+		};
+
+		// not placed as a template, so its own steps are plain fills
+		scratch = new SimulationState( new ChunkedCellGrid( width, height ) );
+		for ( int n = 0; n < template.getNumNets( ); n++ ) {
+			scratch.addNet( template.getNetPoints( n ), template.getNetColour( n ) );
+		}
+		simulator = new Simulator( scratch );
+	}
+
+	public CircuitTemplate getTemplate( ) {
+		return template;
+	}
+
+	public long getHits( ) {
+		return hits;
+	}
+
+	public long getMisses( ) {
+		return misses;
+	}
+
+	/**
+	 * @param cells the instance's cells, row by row; not kept
+	 * @return what one step does to them
+	 */
+	public Step step( byte[] cells ) {
+		Step step = cache.get( ByteBuffer.wrap( cells ) );
+		if ( step != null ) {
+			hits++;
+			return step;
+		}
+		misses++;
+
+		step = simulate( cells );
+		cache.put( ByteBuffer.wrap( cells.clone( ) ), step );
+		return step;
+	}
+
+	/**
+	 * Writes a step's cells and pressures onto a board, at an instance
+	 * whose cells were the step's key.
+	 */
+	public static void apply( Step step, SimulationState state, int left, int top, int width ) {
+		for ( int change : step.cellChanges ) {
+			int offset = change >>> 4;
+			state.setCell( left + offset % width, top + offset / width, change & 0x0F );
+		}
+		for ( int pressure : step.pressures ) {
+			int offset = pressure >>> 2;
+			state.setPressure( left + offset % width, top + offset / width, pressure & 0x03 );
+		}
+	}
+
+
+	private Step simulate( byte[] cells ) {
+		for ( int y = 0; y < height; y++ ) {
+			for ( int x = 0; x < width; x++ ) {
+				scratch.setCell( x, y, cells[y * width + x] );
+			}
+		}
+
+		Step step = new Step( );
+		try {
+			simulator.step( );
+		} catch ( ShortCircuitException e ) {
+			step.shorts = true;
+			step.cellChanges = new int[0];
+			step.pressures = new int[0];
+			return step;
+		}
+		step.numShifts = simulator.getLastShifts( );
+
+		int numChanges = 0, numPressures = 0;
+		for ( int y = 0; y < height; y++ ) {
+			for ( int x = 0; x < width; x++ ) {
+				if ( scratch.getCell( x, y ) != cells[y * width + x] ) {
+					numChanges++;
+				}
+				if ( scratch.getPressure( x, y ) != SimulationState.PRESSURE_NONE ) {
+					numPressures++;
+				}
+			}
+		}
+
+		step.cellChanges = new int[numChanges];
+		step.pressures = new int[numPressures];
+		numChanges = 0;
+		numPressures = 0;
+		for ( int y = 0; y < height; y++ ) {
+			for ( int x = 0; x < width; x++ ) {
+				int offset = y * width + x;
+				int cell = scratch.getCell( x, y );
+				if ( cell != cells[offset] ) {
+					step.cellChanges[numChanges++] = ( offset << 4 ) | cell;
+				}
+				int pressure = scratch.getPressure( x, y );
+				if ( pressure != SimulationState.PRESSURE_NONE ) {
+					step.pressures[numPressures++] = ( offset << 2 ) | pressure;
+				}
+			}
+		}
+		return step;
+	}
+}
@@ -0,0 +1,15 @@
+package simulation;
+
+import java.io.IOException;
+
+/**
+ * Somewhere to put per-step signal values. Signals are declared up
+ * front; after that each step records every signal then calls endStep.
+ */
+public interface TraceSink {
+	public int addSignal( String name, int width );
+
+	public void record( int signal, int value );
+
+	public void endStep( ) throws IOException;
+}
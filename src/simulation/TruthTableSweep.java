@@ -0,0 +1,293 @@
+package simulation;
+
+import java.awt.Point;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import state.ConnectionNet;
+import state.ShortCircuitBuffer;
+import state.ShortCircuitException;
+import state.SimulationState;
+
+/**
+ * The truth table SimulationThread prints at startup, without a viewer:
+ * every input vector in counting order (input 0 is the most significant
+ * bit), each run for a fixed number of steps without resetting the board
+ * in between, then the outputs read.
+ *
+ * Tables can be kept in a ResultCache under a SHA-256 of everything the
+ * sweep depends on (the cells, nets, inputs, outputs and the number of
+ * steps per row), so an unchanged board is never simulated twice.
+ */
+public class TruthTableSweep {
+	public static final int DEFAULT_SETTLE_STEPS = 3;
+
+	// bump when the simulation's behaviour changes, so old tables miss
+	private static final int FORMAT_VERSION = 1;
+
+	private SimulationState state;
+	private int settleSteps;
+	private int numInputs, numOutputs;
+
+	private boolean[][] table = null;
+	private boolean cached = false;
+
+	public TruthTableSweep( SimulationState state ) {
+		this( state, DEFAULT_SETTLE_STEPS );
+	}
+
+	public TruthTableSweep( SimulationState state, int settleSteps ) {
+		this.state = state;
+		this.settleSteps = settleSteps;
+		this.numInputs = state.getInputs( ).size( );
+		this.numOutputs = state.getOutputs( ).size( );
+
+		if ( numInputs > 24 ) {
+			throw new IllegalArgumentException( "too many inputs for a truth table: " + numInputs );
+		}
+	}
+
+	public int getNumRows( ) {
+		return 1 << numInputs;
+	}
+
+	/**
+	 * @return the outputs of each row, once run
+	 */
+	public boolean[][] getTable( ) {
+		return table;
+	}
+
+	/**
+	 * @return true if the last run came from the cache
+	 */
+	public boolean wasCached( ) {
+		return cached;
+	}
+
+	/**
+	 * Simulates a copy of the board over every row.
+	 */
+	public boolean[][] run( ) {
+		Simulator simulator = new Simulator( new SimulationState( state ) );
+		// like the viewer's thread: shorts are collected and the step completes
+		simulator.setShortCircuitBuffer( new ShortCircuitBuffer( ) );
+
+		table = new boolean[getNumRows( )][];
+		for ( int row = 0; row < table.length; row++ ) {
+			simulator.setInputs( inputVector( row, numInputs ) );
+			for ( int i = 0; i < settleSteps; i++ ) {
+				try {
+					simulator.step( );
+				} catch ( ShortCircuitException e ) {
+					// not thrown while collecting
+				}
+			}
+			table[row] = simulator.getOutputs( );
+		}
+
+		cached = false;
+		return table;
+	}
+
+	/**
+	 * Looks the table up in the cache, simulating and storing it on a miss.
+	 */
+	public boolean[][] run( ResultCache cache ) throws IOException {
+		String key = getKey( );
+		byte[] stored = cache.get( key );
+		if ( stored != null ) {
+			table = decode( stored );
+			if ( table != null ) {
+				cached = true;
+				return table;
+			}
+		}
+
+		run( );
+		cache.put( key, encode( table ) );
+		return table;
+	}
+
+	/**
+	 * @return the hex SHA-256 of everything the table depends on
+	 */
+	public String getKey( ) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance( "SHA-256" );
+		} catch ( NoSuchAlgorithmException e ) {
+			throw new IllegalStateException( e );
+		}
+
+		ByteBuffer header = ByteBuffer.allocate( 16 );
+		header.putInt( FORMAT_VERSION ).putInt( settleSteps ).putInt( state.getWidth( ) ).putInt( state.getHeight( ) );
+		digest.update( header.array( ) );
+
+		byte[] column = new byte[state.getHeight( )];
+		for ( int x = 0; x < state.getWidth( ); x++ ) {
+			for ( int y = 0; y < state.getHeight( ); y++ ) {
+				column[y] = (byte) state.getCell( x, y );
+			}
+			digest.update( column );
+		}
+
+		// inputs and outputs are ordered by placement on layouts, so they count too
+		updatePoints( digest, state.getInputs( ) );
+		updatePoints( digest, state.getOutputs( ) );
+
+		ArrayList<ConnectionNet> nets = state.getNets( );
+		Collections.sort( nets, new Comparator<ConnectionNet>( ) {
+			public int compare( ConnectionNet a, ConnectionNet b ) {
+				return Integer.valueOf( a.getID( ) ).compareTo( b.getID( ) );
+			}
+		} );
+		for ( ConnectionNet net : nets ) {
+			updatePoints( digest, net.getPoints( ) );
+		}
+
+		StringBuilder hex = new StringBuilder( );
+		for ( byte b : digest.digest( ) ) {
+			hex.append( String.format( "%02x", b & 0xFF ) );
+		}
+		return hex.toString( );
+	}
+
+	/**
+	 * @return the table in SimulationThread's layout
+	 */
+	public String format( ) {
+		StringBuilder text = new StringBuilder( );
+		for ( int row = 0; row < table.length; row++ ) {
+			text.append( formatBits( inputVector( row, numInputs ) ) ).append( '|' );
+			text.append( formatBits( table[row] ) ).append( '\n' );
+		}
+		return text.toString( );
+	}
+
+	/**
+	 * @return the inputs of a truth table row, input 0 most significant
+	 */
+	public static boolean[] inputVector( int row, int numInputs ) {
+		boolean[] inputs = new boolean[numInputs];
+		for ( int i = 0; i < numInputs; i++ ) {
+			inputs[i] = ( ( row >> ( numInputs - 1 - i ) ) & 1 ) != 0;
+		}
+		return inputs;
+	}
+
+	public static String formatBits( boolean[] values ) {
+		StringBuilder text = new StringBuilder( );
+		for ( boolean value : values ) {
+			text.append( value ? " 1 |" : " 0 |" );
+		}
+		return text.toString( );
+	}
+
+
+	private static void updatePoints( MessageDigest digest, ArrayList<Point> points ) {
+		ByteBuffer buffer = ByteBuffer.allocate( 4 + points.size( ) * 8 );
+		buffer.putInt( points.size( ) );
+		for ( Point point : points ) {
+			buffer.putInt( point.x ).putInt( point.y );
+		}
+		digest.update( buffer.array( ) );
+	}
+
+	private byte[] encode( boolean[][] rows ) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream( );
+		DataOutputStream out = new DataOutputStream( bytes );
+		out.writeInt( FORMAT_VERSION );
+		out.writeInt( numInputs );
+		out.writeInt( numOutputs );
+		for ( boolean[] outputs : rows ) {
+			for ( int o = 0; o < numOutputs; o += 8 ) {
+				int packed = 0;
+				for ( int b = 0; b < 8 && o + b < numOutputs; b++ ) {
+					if ( outputs[o + b] ) {
+						packed |= 1 << b;
+					}
+				}
+				out.writeByte( packed );
+			}
+		}
+		out.close( );
+		return bytes.toByteArray( );
+	}
+
+	// null if the entry is not a table for this board's shape
+	private boolean[][] decode( byte[] stored ) throws IOException {
+		DataInputStream in = new DataInputStream( new ByteArrayInputStream( stored ) );
+		if ( in.readInt( ) != FORMAT_VERSION || in.readInt( ) != numInputs || in.readInt( ) != numOutputs ) {
+			return null;
+		}
+		boolean[][] rows = new boolean[getNumRows( )][numOutputs];
+		for ( boolean[] outputs : rows ) {
+			for ( int o = 0; o < numOutputs; o += 8 ) {
+				int packed = in.readUnsignedByte( );
+				for ( int b = 0; b < 8 && o + b < numOutputs; b++ ) {
+					outputs[o + b] = ( ( packed >> b ) & 1 ) != 0;
+				}
+			}
+		}
+		return rows;
+	}
+
+
+	/**
+	 * @param args boards to sweep; "-cache dir" keeps tables there (default
+	 *        ~/.steamos/cache), "-cache-mb n" bounds it, "-steps n" sets the
+	 *        steps run per row and "-no-cache" always simulates
+	 */
+	public static void main( String[] args ) throws IOException {
+		File cacheDirectory = new File( new File( System.getProperty( "user.home" ), ".steamos" ), "cache" );
+		long cacheBytes = ResultCache.DEFAULT_MAX_BYTES;
+		int steps = DEFAULT_SETTLE_STEPS;
+		boolean useCache = true;
+		ArrayList<String> boards = new ArrayList<String>( );
+
+		for ( int i = 0; i < args.length; i++ ) {
+			if ( args[i].equals( "-cache" ) && i + 1 < args.length ) {
+				cacheDirectory = new File( args[++i] );
+			} else if ( args[i].equals( "-cache-mb" ) && i + 1 < args.length ) {
+				cacheBytes = Long.parseLong( args[++i] ) * 1024 * 1024;
+			} else if ( args[i].equals( "-steps" ) && i + 1 < args.length ) {
+				steps = Integer.parseInt( args[++i] );
+			} else if ( args[i].equals( "-no-cache" ) ) {
+				useCache = false;
+			} else {
+				boards.add( args[i] );
+			}
+		}
+		if ( boards.isEmpty( ) ) {
+			System.err.println( "usage: TruthTableSweep [-cache dir] [-cache-mb n] [-steps n] [-no-cache] board..." );
+			System.exit( 1 );
+		}
+
+		ResultCache cache = useCache ? new ResultCache( cacheDirectory, cacheBytes ) : null;
+		for ( String board : boards ) {
+			SimulationState state = SimulationState.load( new File( board ) );
+
+			long start = System.nanoTime( );
+			TruthTableSweep sweep = new TruthTableSweep( state, steps );
+			if ( cache != null ) {
+				sweep.run( cache );
+			} else {
+				sweep.run( );
+			}
+			System.out.println( board + ( sweep.wasCached( ) ? " (cached" : " (simulated" ) + " in "
+				+ ( System.nanoTime( ) - start ) / 1000000 + "ms)" );
+			System.out.print( sweep.format( ) );
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package simulation;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes signal values as a Value Change Dump, one time unit per step.
+ * Either hand it a whole WaveformTrace, or stream steps through
+ * begin/writeStep/end.
+ */
+public class VcdWriter {
+	private Writer out;
+	private String moduleName;
+
+	private String[] codes;
+	private int[] widths;
+	private int[] previous;
+	private long numSteps = 0;
+	private StringBuilder changes = new StringBuilder( );
+
+	public VcdWriter( Writer out, String moduleName ) {
+		this.out = out;
+		this.moduleName = moduleName;
+	}
+
+	public void write( WaveformTrace trace ) throws IOException {
+		int numSignals = trace.getNumSignals( );
+		String[] names = new String[numSignals];
+		int[] signalWidths = new int[numSignals];
+		for ( int i = 0; i < numSignals; i++ ) {
+			names[i] = trace.getName( i );
+			signalWidths[i] = trace.getWidth( i );
+		}
+
+		begin( names, signalWidths );
+		int[] values = new int[numSignals];
+		for ( int step = 0; step < trace.getNumSteps( ); step++ ) {
+			for ( int i = 0; i < numSignals; i++ ) {
+				values[i] = trace.getValue( i, step );
+			}
+			writeStep( values );
+		}
+		end( );
+	}
+
+	public void begin( String[] names, int[] signalWidths ) throws IOException {
+		codes = new String[names.length];
+		widths = signalWidths.clone( );
+		previous = new int[names.length];
+		numSteps = 0;
+
+		out.write( "$timescale 1ns $end\n" );
+		out.write( "$scope module " + moduleName + " $end\n" );
+		for ( int i = 0; i < names.length; i++ ) {
+			codes[i] = identifierCode( i );
+			out.write( "$var wire " + widths[i] + " " + codes[i] + " " + names[i] + " $end\n" );
+		}
+		out.write( "$upscope $end\n" );
+		out.write( "$enddefinitions $end\n" );
+	}
+
+	/**
+	 * Writes the values of every signal for the next step, only emitting changes.
+	 */
+	public void writeStep( int[] values ) throws IOException {
+		changes.setLength( 0 );
+
+		for ( int i = 0; i < codes.length; i++ ) {
+			if ( numSteps == 0 || values[i] != previous[i] ) {
+				appendValue( changes, values[i], widths[i], codes[i] );
+				previous[i] = values[i];
+			}
+		}
+
+		if ( changes.length( ) > 0 ) {
+			out.write( "#" + numSteps + "\n" );
+			out.write( changes.toString( ) );
+		}
+		numSteps++;
+	}
+
+	public void end( ) throws IOException {
+		out.write( "#" + numSteps + "\n" );
+		out.flush( );
+	}
+
+	static void appendValue( StringBuilder changes, int value, int width, String code ) {
+		if ( width == 1 ) {
+			changes.append( value & 1 ).append( code ).append( '\n' );
+		} else {
+			changes.append( 'b' );
+			for ( int b = width - 1; b >= 0; b-- ) {
+				changes.append( ( value >> b ) & 1 );
+			}
+			changes.append( ' ' ).append( code ).append( '\n' );
+		}
+	}
+
+	// short printable identifiers: !, ", #, ... then two characters
+	static String identifierCode( int index ) {
+		StringBuilder code = new StringBuilder( );
+		do {
+			code.append( (char) ( '!' + index % 94 ) );
+			index = index / 94 - 1;
+		} while ( index >= 0 );
+		return code.toString( );
+	}
+}
@@ -0,0 +1,111 @@
+package simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Per-step signal values stored column by column: every bit of every
+ * signal gets its own packed long[] of 64 steps per word.
+ */
+public class WaveformTrace implements TraceSink {
+	private ArrayList<String> names = new ArrayList<String>( );
+	private int[] widths = new int[0];
+	// first bit column of each signal
+	private int[] firstColumns = new int[0];
+
+	private long[][] columns = new long[0][];
+	private int numSteps = 0;
+	private int capacityWords = 16;
+
+	/**
+	 * Declares a signal of the given bit width, before any steps are recorded.
+	 * @return the signal's id
+	 */
+	public int addSignal( String name, int width ) {
+		if ( numSteps > 0 ) {
+			throw new IllegalStateException( "signals must be declared before recording" );
+		}
+
+		int id = names.size( );
+		names.add( name );
+		widths = Arrays.copyOf( widths, id + 1 );
+		firstColumns = Arrays.copyOf( firstColumns, id + 1 );
+		widths[id] = width;
+		firstColumns[id] = columns.length;
+
+		columns = Arrays.copyOf( columns, columns.length + width );
+		for ( int i = columns.length - width; i < columns.length; i++ ) {
+			columns[i] = new long[capacityWords];
+		}
+
+		return id;
+	}
+
+	public int getNumSignals( ) {
+		return names.size( );
+	}
+
+	public String getName( int signal ) {
+		return names.get( signal );
+	}
+
+	public int getWidth( int signal ) {
+		return widths[signal];
+	}
+
+	public int getNumSteps( ) {
+		return numSteps;
+	}
+
+	/**
+	 * Sets a signal's value in the step being recorded.
+	 */
+	public void record( int signal, int value ) {
+		int first = firstColumns[signal];
+		int width = widths[signal];
+		int word = numSteps >> 6;
+		long bit = 1L << ( numSteps & 63 );
+
+		for ( int b = 0; b < width; b++ ) {
+			if ( ( ( value >> b ) & 1 ) != 0 ) {
+				columns[first + b][word] |= bit;
+			} else {
+				columns[first + b][word] &= ~bit;
+			}
+		}
+	}
+
+	public void record( int signal, boolean value ) {
+		record( signal, value ? 1 : 0 );
+	}
+
+	/**
+	 * Finishes the step being recorded. Signals not recorded this step read as 0.
+	 */
+	public void endStep( ) {
+		numSteps++;
+		if ( ( numSteps >> 6 ) >= capacityWords ) {
+			grow( );
+		}
+	}
+
+	public int getValue( int signal, int step ) {
+		int first = firstColumns[signal];
+		int width = widths[signal];
+		int word = step >> 6;
+		int shift = step & 63;
+
+		int value = 0;
+		for ( int b = 0; b < width; b++ ) {
+			value |= (int) ( ( columns[first + b][word] >>> shift ) & 1 ) << b;
+		}
+		return value;
+	}
+
+	private void grow( ) {
+		capacityWords *= 2;
+		for ( int i = 0; i < columns.length; i++ ) {
+			columns[i] = Arrays.copyOf( columns[i], capacityWords );
+		}
+	}
+}
@@ -0,0 +1,392 @@
+package state;
+
+import java.awt.Point;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Boards as text, drawn with the glyphs printDebug uses, so they can be
+ * written by hand and diffed in review:
+ * <pre>
+ * board 8 3
+ * ########|
+ * ^  ~  v#|
+ * ########|
+ * net 1 ffff8000 1,1 4,1
+ * inputs 0,1
+ * outputs 6,1
+ * </pre>
+ * After the size come exactly that many rows of exactly width glyphs,
+ * each ended by a '|' so that an editor stripping trailing whitespace
+ * cannot turn channels into solid unnoticed. The lines after the rows are optional:
+ * each net gives its id, ARGB colour and points, and the inputs and
+ * outputs lines give their order, which otherwise is the order the
+ * input and output glyphs appear in. Lines starting with "//" are
+ * comments anywhere outside the rows.
+ *
+ * Rows are read and written a byte at a time through a fixed buffer
+ * rather than as Strings, so a large board loads and saves faster than
+ * its bitmap.
+ */
+public class AsciiBoardFormat {
+	// indexed by cell type, as printed by printDebug
+	public static final char[] GLYPHS = new char[] {
+		'#',
+		' ',
+		'"',
+		':',
+		'~',
+		'*',
+		'-',
+		'+',
+		'0',
+		'^',
+		'v'
+	};
+
+	public static final char TERMINATOR = '|';
+
+	private static final byte UNKNOWN = -1;
+	private static final byte[] CELLS = new byte[128];
+
+	static {
+		for ( int i = 0; i < CELLS.length; i++ ) {
+			CELLS[i] = UNKNOWN;
+		}
+		for ( int cell = 0; cell < GLYPHS.length; cell++ ) {
+			CELLS[GLYPHS[cell]] = (byte) cell;
+		}
+	}
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * @return the glyph drawn for a cell type, or '?' for none
+	 */
+	public static char glyph( int cell ) {
+		return ( cell >= 0 && cell < GLYPHS.length ) ? GLYPHS[cell] : '?';
+	}
+
+	/**
+	 * @return the cell type a glyph stands for, or -1 for none
+	 */
+	public static int cell( char glyph ) {
+		return ( glyph < CELLS.length ) ? CELLS[glyph] : UNKNOWN;
+	}
+
+
+	// reading
+
+	public static SimulationState read( File boardFile ) throws IOException {
+		InputStream in = new FileInputStream( boardFile );
+		try {
+			return read( in );
+		} finally {
+			in.close( );
+		}
+	}
+
+	public static SimulationState read( InputStream in ) throws IOException {
+		LineReader reader = new LineReader( in );
+
+		String header = reader.nextSection( );
+		if ( header == null ) {
+			throw new IOException( "board: empty file" );
+		}
+		String[] words = header.split( "\\s+" );
+		int width, height;
+		try {
+			if ( !words[0].equals( "board" ) ) {
+				throw new IOException( "board line " + reader.lineNumber + ": expected board <width> <height>" );
+			}
+			width = Integer.parseInt( words[1] );
+			height = Integer.parseInt( words[2] );
+		} catch ( ArrayIndexOutOfBoundsException e ) {
+			throw new IOException( "board line " + reader.lineNumber + ": missing board size" );
+		} catch ( NumberFormatException e ) {
+			throw new IOException( "board line " + reader.lineNumber + ": bad board size" );
+		}
+		if ( width <= 0 || height <= 0 ) {
+			throw new IOException( "board line " + reader.lineNumber + ": bad board size" );
+		}
+
+		SimulationState state = new SimulationState( width, height );
+		CellGrid grid = state.grid;
+		ArrayList<Point> inputGlyphs = new ArrayList<Point>( );
+		ArrayList<Point> outputGlyphs = new ArrayList<Point>( );
+
+		for ( int y = 0; y < height; y++ ) {
+			int length = reader.nextLine( );
+			if ( length < 0 ) {
+				throw new IOException( "board: expected " + height + " rows, found " + y );
+			}
+			byte[] row = reader.line;
+			if ( length == 0 || row[length - 1] != TERMINATOR ) {
+				throw new IOException( "board line " + reader.lineNumber + ": row does not end with '" + TERMINATOR + "'" );
+			}
+			if ( length - 1 != width ) {
+				throw new IOException( "board line " + reader.lineNumber + ": row has " + ( length - 1 ) + " cells, expected " + width );
+			}
+
+			for ( int x = 0; x < width; x++ ) {
+				int glyph = row[x];
+				int cell = ( glyph >= 0 ) ? CELLS[glyph] : UNKNOWN;
+				if ( cell == UNKNOWN ) {
+					throw new IOException( "board line " + reader.lineNumber + ": unknown glyph '" + (char) ( glyph & 0xFF ) + "' at column " + ( x + 1 ) );
+				}
+				if ( cell != SimulationState.SOLID ) {
+					grid.setCell( x, y, cell );
+					if ( cell == SimulationState.INPUT ) {
+						inputGlyphs.add( new Point( x, y ) );
+					} else if ( cell == SimulationState.OUTPUT ) {
+						outputGlyphs.add( new Point( x, y ) );
+					}
+				}
+			}
+		}
+
+		ArrayList<Point> inputs = null;
+		ArrayList<Point> outputs = null;
+		String line;
+		while ( ( line = reader.nextSection( ) ) != null ) {
+			words = line.split( "\\s+" );
+			try {
+				if ( words[0].equals( "net" ) ) {
+					int id = Integer.parseInt( words[1] );
+					int colour = (int) Long.parseLong( words[2], 16 );
+					if ( state.nets.containsKey( id ) ) {
+						throw new IOException( "board line " + reader.lineNumber + ": net " + id + " defined twice" );
+					}
+					ArrayList<Point> points = parsePoints( words, 3, state, reader.lineNumber );
+					ConnectionNet net = new ConnectionNet( points.toArray( new Point[points.size( )] ), id, colour );
+					state.nets.put( id, net );
+					for ( Point point : points ) {
+						if ( state.netPoints.containsKey( point ) ) {
+							throw new IOException( "board line " + reader.lineNumber + ": " + point.x + "," + point.y + " is already on a net" );
+						}
+						state.netPoints.put( point, net );
+					}
+				} else if ( words[0].equals( "inputs" ) ) {
+					inputs = parsePoints( words, 1, state, reader.lineNumber );
+				} else if ( words[0].equals( "outputs" ) ) {
+					outputs = parsePoints( words, 1, state, reader.lineNumber );
+				} else {
+					throw new IOException( "board line " + reader.lineNumber + ": unknown section " + words[0] );
+				}
+			} catch ( ArrayIndexOutOfBoundsException e ) {
+				throw new IOException( "board line " + reader.lineNumber + ": missing arguments to " + words[0] );
+			} catch ( NumberFormatException e ) {
+				throw new IOException( "board line " + reader.lineNumber + ": " + e.getMessage( ) );
+			}
+		}
+
+		state.inputs.addAll( ( inputs != null ) ? inputs : inputGlyphs );
+		state.outputs.addAll( ( outputs != null ) ? outputs : outputGlyphs );
+		return state;
+	}
+
+	private static ArrayList<Point> parsePoints( String[] words, int first, SimulationState state, int lineNumber ) throws IOException {
+		ArrayList<Point> points = new ArrayList<Point>( words.length - first );
+		for ( int i = first; i < words.length; i++ ) {
+			int comma = words[i].indexOf( ',' );
+			if ( comma < 0 ) {
+				throw new IOException( "board line " + lineNumber + ": expected x,y but found " + words[i] );
+			}
+			int x = Integer.parseInt( words[i].substring( 0, comma ) );
+			int y = Integer.parseInt( words[i].substring( comma + 1 ) );
+			if ( x < 0 || y < 0 || x >= state.getWidth( ) || y >= state.getHeight( ) ) {
+				throw new IOException( "board line " + lineNumber + ": " + words[i] + " is off the board" );
+			}
+			points.add( new Point( x, y ) );
+		}
+		return points;
+	}
+
+
+	// writing
+
+	public static void write( SimulationState state, File boardFile ) throws IOException {
+		OutputStream out = new FileOutputStream( boardFile );
+		try {
+			write( state, out );
+		} finally {
+			out.close( );
+		}
+	}
+
+	/**
+	 * Writes the board and its nets; flushes but does not close the stream.
+	 */
+	public static void write( SimulationState state, OutputStream out ) throws IOException {
+		BufferedOutputStream buffered = new BufferedOutputStream( out, BUFFER_SIZE );
+		writeText( buffered, "board " + state.getWidth( ) + " " + state.getHeight( ) + "\n" );
+		writeRows( state, buffered );
+
+		ArrayList<ConnectionNet> nets = state.getNets( );
+		Collections.sort( nets, new Comparator<ConnectionNet>( ) {
+			public int compare( ConnectionNet a, ConnectionNet b ) {
+				return Integer.valueOf( a.getID( ) ).compareTo( b.getID( ) );
+			}
+		} );
+		for ( ConnectionNet net : nets ) {
+			StringBuilder line = new StringBuilder( "net " );
+			line.append( net.getID( ) ).append( ' ' ).append( String.format( "%08x", net.getColour( ) ) );
+			appendPoints( line, net.getPoints( ) );
+			writeText( buffered, line.append( '\n' ).toString( ) );
+		}
+
+		// only when the glyphs alone would give a different order
+		if ( !state.getInputs( ).equals( inGlyphOrder( state, SimulationState.INPUT ) ) ) {
+			StringBuilder line = new StringBuilder( "inputs" );
+			appendPoints( line, state.getInputs( ) );
+			writeText( buffered, line.append( '\n' ).toString( ) );
+		}
+		if ( !state.getOutputs( ).equals( inGlyphOrder( state, SimulationState.OUTPUT ) ) ) {
+			StringBuilder line = new StringBuilder( "outputs" );
+			appendPoints( line, state.getOutputs( ) );
+			writeText( buffered, line.append( '\n' ).toString( ) );
+		}
+
+		buffered.flush( );
+	}
+
+	/**
+	 * Writes just the rows of glyphs; flushes but does not close the stream.
+	 */
+	public static void writeCells( SimulationState state, OutputStream out ) throws IOException {
+		BufferedOutputStream buffered = new BufferedOutputStream( out, BUFFER_SIZE );
+		writeRows( state, buffered );
+		buffered.flush( );
+	}
+
+	private static void writeRows( SimulationState state, OutputStream out ) throws IOException {
+		int width = state.getWidth( );
+		byte[] row = new byte[width + 2];
+		row[width] = TERMINATOR;
+		row[width + 1] = '\n';
+
+		for ( int y = 0; y < state.getHeight( ); y++ ) {
+			for ( int x = 0; x < width; x++ ) {
+				row[x] = (byte) glyph( state.getCell( x, y ) );
+			}
+			out.write( row );
+		}
+	}
+
+	// the cells of a type in the order read would find them
+	private static ArrayList<Point> inGlyphOrder( SimulationState state, int type ) {
+		ArrayList<Point> points = new ArrayList<Point>( );
+		for ( int y = 0; y < state.getHeight( ); y++ ) {
+			for ( int x = state.grid.nextOccupied( 0, y ); x < state.getWidth( ); x = state.grid.nextOccupied( x + 1, y ) ) {
+				if ( state.grid.getCell( x, y ) == type ) {
+					points.add( new Point( x, y ) );
+				}
+			}
+		}
+		return points;
+	}
+
+	private static void appendPoints( StringBuilder line, ArrayList<Point> points ) {
+		for ( Point point : points ) {
+			line.append( ' ' ).append( point.x ).append( ',' ).append( point.y );
+		}
+	}
+
+	private static void writeText( OutputStream out, String text ) throws IOException {
+		out.write( text.getBytes( "US-ASCII" ) );
+	}
+
+
+	/**
+	 * Saves any board SimulationState.load reads, such as a bitmap or a
+	 * layout, as a board file.
+	 */
+	public static void main( String[] args ) throws IOException {
+		if ( args.length < 2 ) {
+			System.err.println( "usage: AsciiBoardFormat board output.board" );
+			System.exit( 1 );
+		}
+
+		SimulationState state = SimulationState.load( new File( args[0] ) );
+		write( state, new File( args[1] ) );
+		System.out.println( "wrote " + state.getWidth( ) + "x" + state.getHeight( ) + " board to " + args[1] );
+	}
+
+
+	/**
+	 * Splits a stream into lines of bytes without making Strings of the rows.
+	 */
+	private static class LineReader {
+		private InputStream in;
+		private byte[] buffer = new byte[BUFFER_SIZE];
+		private int position = 0, limit = 0;
+
+		byte[] line = new byte[256];
+		int lineNumber = 0;
+
+		LineReader( InputStream in ) {
+			this.in = in;
+		}
+
+		/**
+		 * @return the length of the next line in line, without its end, or -1 at the end of the stream
+		 */
+		int nextLine( ) throws IOException {
+			int length = 0;
+			boolean any = false;
+			while ( true ) {
+				if ( position == limit ) {
+					limit = in.read( buffer, 0, buffer.length );
+					position = 0;
+					if ( limit <= 0 ) {
+						limit = 0;
+						if ( !any ) {
+							return -1;
+						}
+						break;
+					}
+				}
+				any = true;
+
+				byte b = buffer[position++];
+				if ( b == '\n' ) {
+					break;
+				}
+				if ( length == line.length ) {
+					byte[] longer = new byte[line.length * 2];
+					System.arraycopy( line, 0, longer, 0, length );
+					line = longer;
+				}
+				line[length++] = b;
+			}
+
+			lineNumber++;
+			if ( length > 0 && line[length - 1] == '\r' ) {
+				length--;
+			}
+			return length;
+		}
+
+		/**
+		 * @return the next line outside the rows that is not blank or a comment, trimmed
+		 */
+		String nextSection( ) throws IOException {
+			int length;
+			while ( ( length = nextLine( ) ) >= 0 ) {
+				String text = new String( line, 0, length, "US-ASCII" ).trim( );
+				if ( text.length( ) > 0 && !text.startsWith( "//" ) ) {
+					return text;
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package state;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A board assembled from library bitmaps placed at offsets, optionally
+ * over a base bitmap. Each library bitmap is loaded once and shared by
+ * every instance of it as a CircuitTemplate.
+ *
+ * Layout files are line based, '#' starts a comment, and paths are
+ * relative to the layout file:
+ * <pre>
+ * base  host.bmp        # or: size 200 120
+ * place latch.bmp 10 4
+ * place latch.bmp 10 40
+ * </pre>
+ */
+public class BoardLayout {
+	private SimulationState state;
+	private HashMap<String, CircuitTemplate> library = new HashMap<String, CircuitTemplate>( );
+
+	public BoardLayout( SimulationState base ) {
+		this.state = base;
+	}
+
+	public SimulationState getState( ) {
+		return state;
+	}
+
+	public ArrayList<SubCircuitInstance> getInstances( ) {
+		return state.getInstances( );
+	}
+
+	public CircuitTemplate getTemplate( File imageFile ) throws IOException {
+		String key = imageFile.getCanonicalPath( );
+		CircuitTemplate template = library.get( key );
+		if ( template == null ) {
+			template = CircuitTemplate.load( imageFile );
+			library.put( key, template );
+		}
+		return template;
+	}
+
+	public SubCircuitInstance place( CircuitTemplate template, int x, int y ) {
+		return state.placeTemplate( template, x, y );
+	}
+
+
+	// file format
+
+	public static BoardLayout load( File layoutFile ) throws IOException {
+		BufferedReader reader = new BufferedReader( new FileReader( layoutFile ) );
+		File directory = layoutFile.getAbsoluteFile( ).getParentFile( );
+		BoardLayout layout = null;
+
+		try {
+			String line;
+			int lineNumber = 0;
+			while ( ( line = reader.readLine( ) ) != null ) {
+				lineNumber++;
+
+				int comment = line.indexOf( '#' );
+				if ( comment >= 0 ) {
+					line = line.substring( 0, comment );
+				}
+				line = line.trim( );
+				if ( line.length( ) == 0 ) {
+					continue;
+				}
+
+				String[] words = line.split( "\\s+" );
+				try {
+					if ( words[0].equals( "base" ) || words[0].equals( "size" ) ) {
+						if ( layout != null ) {
+							throw new IOException( "layout line " + lineNumber + ": board already defined" );
+						}
+						if ( words[0].equals( "base" ) ) {
+							layout = new BoardLayout( new SimulationState( new File( directory, words[1] ) ) );
+						} else {
+							layout = new BoardLayout( new SimulationState( Integer.parseInt( words[1] ), Integer.parseInt( words[2] ) ) );
+						}
+					} else if ( words[0].equals( "place" ) ) {
+						if ( layout == null ) {
+							throw new IOException( "layout line " + lineNumber + ": place before base or size" );
+						}
+						CircuitTemplate template = layout.getTemplate( new File( directory, words[1] ) );
+						layout.place( template, Integer.parseInt( words[2] ), Integer.parseInt( words[3] ) );
+					} else {
+						throw new IOException( "layout line " + lineNumber + ": unknown command " + words[0] );
+					}
+				} catch ( ArrayIndexOutOfBoundsException e ) {
+					throw new IOException( "layout line " + lineNumber + ": missing arguments to " + words[0] );
+				} catch ( IllegalArgumentException e ) {
+					throw new IOException( "layout line " + lineNumber + ": " + e.getMessage( ) );
+				}
+			}
+		} finally {
+			reader.close( );
+		}
+
+		if ( layout == null ) {
+			throw new IOException( "layout has no base or size" );
+		}
+		return layout;
+	}
+}
@@ -0,0 +1,33 @@
+package state;
+
+/**
+ * Storage for a board's cell types and pressures. Cells off the stored
+ * area read as SOLID with no pressure.
+ */
+public interface CellGrid {
+	public int getWidth( );
+
+	public int getHeight( );
+
+	public int getCell( int x, int y );
+
+	public void setCell( int x, int y, int value );
+
+	public int getPressure( int x, int y );
+
+	public void setPressure( int x, int y, int value );
+
+	/**
+	 * Sets every pressure back to PRESSURE_NONE.
+	 */
+	public void clearPressure( );
+
+	/**
+	 * Lets a scan along a row skip stretches that are known to be solid.
+	 * @return the first x at or after the given one that may hold a
+	 *         non-solid cell, or the width if there is none
+	 */
+	public int nextOccupied( int x, int y );
+
+	public CellGrid copy( );
+}
@@ -0,0 +1,150 @@
+package state;
+
+import java.util.Arrays;
+
+/**
+ * A CellGrid split into 16x16 chunks, allocated only once a non-solid
+ * cell is written into them. Boards are mostly solid, so memory and the
+ * per-step scans scale with the area of the circuit rather than its
+ * bounding box: an unallocated chunk reads as solid without touching
+ * any cell storage, and only chunks pressure was written to are cleared.
+ */
+public class ChunkedCellGrid implements CellGrid {
+	public static final int CHUNK_BITS = 4;
+	public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private int width, height;
+	private int chunksWide, chunksHigh;
+
+	// indexed [chunkY * chunksWide + chunkX][(y & 15) << 4 | (x & 15)]
+	private byte[][] cells;
+	private byte[][] pressures;
+
+	// chunks written to since the last clear, so clearing skips the rest
+	private int[] pressurised;
+	private boolean[] isPressurised;
+	private int numPressurised = 0;
+
+	private int numChunks = 0;
+
+	public ChunkedCellGrid( int width, int height ) {
+		this.width = width;
+		this.height = height;
+		this.chunksWide = ( width + CHUNK_MASK ) >> CHUNK_BITS;
+		this.chunksHigh = ( height + CHUNK_MASK ) >> CHUNK_BITS;
+
+		int totalChunks = chunksWide * chunksHigh;
+		this.cells = new byte[totalChunks][];
+		this.pressures = new byte[totalChunks][];
+		this.pressurised = new int[totalChunks];
+		this.isPressurised = new boolean[totalChunks];
+	}
+
+	public int getWidth( ) {
+		return width;
+	}
+
+	public int getHeight( ) {
+		return height;
+	}
+
+	/**
+	 * @return the number of chunks holding cells
+	 */
+	public int getNumChunks( ) {
+		return numChunks;
+	}
+
+	public int getCell( int x, int y ) {
+		if ( !contains( x, y ) ) {
+			return SimulationState.SOLID;
+		}
+		byte[] chunk = cells[( y >> CHUNK_BITS ) * chunksWide + ( x >> CHUNK_BITS )];
+		if ( chunk == null ) {
+			return SimulationState.SOLID;
+		}
+		return chunk[( ( y & CHUNK_MASK ) << CHUNK_BITS ) | ( x & CHUNK_MASK )];
+	}
+
+	public void setCell( int x, int y, int value ) {
+		int index = ( y >> CHUNK_BITS ) * chunksWide + ( x >> CHUNK_BITS );
+		if ( cells[index] == null ) {
+			if ( value == SimulationState.SOLID ) {
+				return;
+			}
+			allocate( index );
+		}
+		cells[index][( ( y & CHUNK_MASK ) << CHUNK_BITS ) | ( x & CHUNK_MASK )] = (byte) value;
+	}
+
+	public int getPressure( int x, int y ) {
+		if ( !contains( x, y ) ) {
+			return SimulationState.PRESSURE_NONE;
+		}
+		byte[] chunk = pressures[( y >> CHUNK_BITS ) * chunksWide + ( x >> CHUNK_BITS )];
+		if ( chunk == null ) {
+			return SimulationState.PRESSURE_NONE;
+		}
+		return chunk[( ( y & CHUNK_MASK ) << CHUNK_BITS ) | ( x & CHUNK_MASK )];
+	}
+
+	public void setPressure( int x, int y, int value ) {
+		int index = ( y >> CHUNK_BITS ) * chunksWide + ( x >> CHUNK_BITS );
+		if ( pressures[index] == null ) {
+			if ( value == SimulationState.PRESSURE_NONE ) {
+				return;
+			}
+			allocate( index );
+		}
+		if ( !isPressurised[index] ) {
+			isPressurised[index] = true;
+			pressurised[numPressurised++] = index;
+		}
+		pressures[index][( ( y & CHUNK_MASK ) << CHUNK_BITS ) | ( x & CHUNK_MASK )] = (byte) value;
+	}
+
+	public void clearPressure( ) {
+		for ( int i = 0; i < numPressurised; i++ ) {
+			int index = pressurised[i];
+			Arrays.fill( pressures[index], (byte) SimulationState.PRESSURE_NONE );
+			isPressurised[index] = false;
+		}
+		numPressurised = 0;
+	}
+
+	public int nextOccupied( int x, int y ) {
+		int row = ( y >> CHUNK_BITS ) * chunksWide;
+		while ( x < width && cells[row + ( x >> CHUNK_BITS )] == null ) {
+			// jump to the start of the next chunk
+			x = ( ( x >> CHUNK_BITS ) + 1 ) << CHUNK_BITS;
+		}
+		return Math.min( x, width );
+	}
+
+	public CellGrid copy( ) {
+		ChunkedCellGrid copy = new ChunkedCellGrid( width, height );
+		for ( int index = 0; index < cells.length; index++ ) {
+			if ( cells[index] != null ) {
+				copy.cells[index] = cells[index].clone( );
+				copy.pressures[index] = pressures[index].clone( );
+			}
+			copy.isPressurised[index] = isPressurised[index];
+		}
+		System.arraycopy( pressurised, 0, copy.pressurised, 0, numPressurised );
+		copy.numPressurised = numPressurised;
+		copy.numChunks = numChunks;
+		return copy;
+	}
+
+	private boolean contains( int x, int y ) {
+		return x >= 0 && y >= 0 && x < width && y < height;
+	}
+
+	private void allocate( int index ) {
+		cells[index] = new byte[CHUNK_SIZE * CHUNK_SIZE];
+		pressures[index] = new byte[CHUNK_SIZE * CHUNK_SIZE];
+		numChunks++;
+	}
+}
@@ -0,0 +1,118 @@
+package state;
+
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * An immutable snapshot of a board's cells, inputs, outputs and net
+ * topology, for placing the same sub-circuit many times.
+ */
+public class CircuitTemplate {
+	private String name;
+	private int width, height;
+	private byte[] cells;
+
+	private Point[] inputs;
+	private Point[] outputs;
+	private Point[][] netPoints;
+	private int[] netColours;
+
+	public CircuitTemplate( String name, SimulationState state ) {
+		this.name = name;
+		this.width = state.getWidth( );
+		this.height = state.getHeight( );
+		this.cells = new byte[width * height];
+
+		for ( int y = 0; y < height; y++ ) {
+			for ( int x = 0; x < width; x++ ) {
+				cells[y * width + x] = (byte) state.getCell( x, y );
+			}
+		}
+
+		// inputs may have been driven already; a template always starts undriven
+		this.inputs = copyPoints( state.getInputs( ) );
+		for ( Point input : inputs ) {
+			cells[input.y * width + input.x] = SimulationState.INPUT;
+		}
+		this.outputs = copyPoints( state.getOutputs( ) );
+
+		ArrayList<ConnectionNet> nets = state.getNets( );
+		this.netPoints = new Point[nets.size( )][];
+		this.netColours = new int[nets.size( )];
+		for ( int n = 0; n < nets.size( ); n++ ) {
+			netPoints[n] = copyPoints( nets.get( n ).getPoints( ) );
+			netColours[n] = nets.get( n ).getColour( );
+		}
+	}
+
+	public static CircuitTemplate load( File imageFile ) throws IOException {
+		return new CircuitTemplate( imageFile.getName( ), new SimulationState( imageFile ) );
+	}
+
+	public String getName( ) {
+		return name;
+	}
+
+	public int getWidth( ) {
+		return width;
+	}
+
+	public int getHeight( ) {
+		return height;
+	}
+
+	public int getCell( int x, int y ) {
+		return cells[y * width + x];
+	}
+
+	public Point[] getInputs( ) {
+		return copyPoints( inputs );
+	}
+
+	public int getNumInputs( ) {
+		return inputs.length;
+	}
+
+	public Point[] getOutputs( ) {
+		return copyPoints( outputs );
+	}
+
+	public int getNumOutputs( ) {
+		return outputs.length;
+	}
+
+	public int getNumNets( ) {
+		return netPoints.length;
+	}
+
+	public Point[] getNetPoints( int net ) {
+		return copyPoints( netPoints[net] );
+	}
+
+	public int getNetColour( int net ) {
+		return netColours[net];
+	}
+
+	/**
+	 * @return a fresh board holding just this template
+	 */
+	public SimulationState instantiate( ) {
+		SimulationState state = new SimulationState( width, height );
+		state.placeTemplate( this, 0, 0 );
+		return state;
+	}
+
+	private static Point[] copyPoints( Point[] points ) {
+		Point[] copy = new Point[points.length];
+		for ( int i = 0; i < points.length; i++ ) {
+			copy[i] = new Point( points[i] );
+		}
+		return copy;
+	}
+
+	private static Point[] copyPoints( ArrayList<Point> points ) {
+		return copyPoints( points.toArray( new Point[points.size( )] ) );
+	}
+}
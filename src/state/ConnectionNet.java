@@ -8,9 +8,15 @@ import java.util.Arrays;
 public class ConnectionNet {
 	protected ArrayList<Point> points;
 	protected int id;
+	protected int colour;
 	
 	public ConnectionNet( Point[] points, int id ) {
+		this( points, id, id );
+	}
+	
+	public ConnectionNet( Point[] points, int id, int colour ) {
 		this.id = id;
+		this.colour = colour;
 		this.points = new ArrayList<Point>( Arrays.asList( points ) );
 	}
 	
@@ -36,4 +42,8 @@ public class ConnectionNet {
 		return id;
 	}
 	
+	public int getColour( ) {
+		return colour;
+	}
+	
 }
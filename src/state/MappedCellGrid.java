@@ -0,0 +1,267 @@
+package state;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A CellGrid kept in a memory-mapped file rather than on the heap, for
+ * boards too large for it. The operating system pages the board in and
+ * out, so its size is bounded by disk, and the collector never scans it.
+ *
+ * Each cell is one byte, its type in the low four bits and its pressure
+ * in the next two, so a fresh sparse file reads as solid with no
+ * pressure. Cells are laid out in 64x64 tiles of one 4k page each,
+ * rather than in rows, so the fill's neighbouring cells are on the same
+ * page and a row scan pages each tile in once for 64 rows. Only tiles
+ * pressure was written to are cleared between steps, and row scans skip
+ * tiles that hold no cells, as ChunkedCellGrid does.
+ */
+public class MappedCellGrid implements CellGrid {
+	public static final int TILE_BITS = 6;
+	public static final int TILE_SIZE = 1 << TILE_BITS;
+
+	private static final int TILE_MASK = TILE_SIZE - 1;
+	private static final int TILE_BYTES_BITS = TILE_BITS * 2;
+
+	// a mapping is limited to 2GB, so large boards span several
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_MASK = ( 1L << SEGMENT_BITS ) - 1;
+
+	private static final int CELL_MASK = 0x0F;
+	private static final int PRESSURE_SHIFT = 4;
+	private static final int PRESSURE_MASK = 0x03 << PRESSURE_SHIFT;
+
+	private int width, height;
+	private int tilesWide, tilesHigh;
+
+	private File file;
+	private boolean temporary;
+	private RandomAccessFile store;
+	private MappedByteBuffer[] segments;
+
+	// on the heap, but only a few bytes per 4096 cells
+	private boolean[] occupied;
+	private int[] pressurised;
+	private boolean[] isPressurised;
+	private int numPressurised = 0;
+
+	/**
+	 * A board in a temporary file in the "steamos.grid.dir" directory, or
+	 * the system's temporary directory. The file is closed and deleted as
+	 * soon as it is mapped, so the grid holds no descriptor and leaves no
+	 * file behind; its disk space goes with the mapping.
+	 */
+	public MappedCellGrid( int width, int height ) throws IOException {
+		this( width, height, createTemporaryFile( ), true );
+	}
+
+	/**
+	 * A board in the given file, which is overwritten.
+	 */
+	public MappedCellGrid( int width, int height, File file ) throws IOException {
+		this( width, height, file, false );
+	}
+
+	private MappedCellGrid( int width, int height, File file, boolean temporary ) throws IOException {
+		this.width = width;
+		this.height = height;
+		this.tilesWide = ( width + TILE_MASK ) >> TILE_BITS;
+		this.tilesHigh = ( height + TILE_MASK ) >> TILE_BITS;
+		this.file = file;
+		this.temporary = temporary;
+
+		int totalTiles = tilesWide * tilesHigh;
+		this.occupied = new boolean[totalTiles];
+		this.pressurised = new int[totalTiles];
+		this.isPressurised = new boolean[totalTiles];
+
+		long length = (long) totalTiles << TILE_BYTES_BITS;
+		this.store = new RandomAccessFile( file, "rw" );
+		try {
+			// truncating first leaves a sparse file of zeros, which is all solid
+			store.setLength( 0 );
+			store.setLength( length );
+
+			FileChannel channel = store.getChannel( );
+			int numSegments = (int) ( ( length + SEGMENT_MASK ) >> SEGMENT_BITS );
+			this.segments = new MappedByteBuffer[numSegments];
+			for ( int i = 0; i < numSegments; i++ ) {
+				long start = (long) i << SEGMENT_BITS;
+				segments[i] = channel.map( FileChannel.MapMode.READ_WRITE, start, Math.min( length - start, 1L << SEGMENT_BITS ) );
+			}
+			if ( temporary ) {
+				// the mapping outlives both
+				store.close( );
+				store = null;
+				file.delete( );
+			}
+		} catch ( IOException e ) {
+			close( );
+			throw e;
+		}
+	}
+
+	private static File createTemporaryFile( ) throws IOException {
+		String directory = System.getProperty( "steamos.grid.dir" );
+		File file = File.createTempFile( "board", ".grid", ( directory != null ) ? new File( directory ) : null );
+		file.deleteOnExit( );
+		return file;
+	}
+
+	public File getFile( ) {
+		return file;
+	}
+
+	/**
+	 * Closes the file, deleting it if it was temporary, and drops the
+	 * mapping, which is released once it is collected. The grid cannot be
+	 * used afterwards.
+	 */
+	public void close( ) throws IOException {
+		segments = null;
+		if ( store != null ) {
+			store.close( );
+			store = null;
+		}
+		if ( temporary ) {
+			file.delete( );
+		}
+	}
+
+	public int getWidth( ) {
+		return width;
+	}
+
+	public int getHeight( ) {
+		return height;
+	}
+
+	public int getCell( int x, int y ) {
+		if ( !contains( x, y ) ) {
+			return SimulationState.SOLID;
+		}
+		return read( offset( x, y ) ) & CELL_MASK;
+	}
+
+	public void setCell( int x, int y, int value ) {
+		int tile = tile( x, y );
+		if ( !occupied[tile] ) {
+			if ( value == SimulationState.SOLID ) {
+				return;
+			}
+			occupied[tile] = true;
+		}
+		long offset = offset( tile, x, y );
+		write( offset, ( read( offset ) & ~CELL_MASK ) | value );
+	}
+
+	public int getPressure( int x, int y ) {
+		if ( !contains( x, y ) ) {
+			return SimulationState.PRESSURE_NONE;
+		}
+		return ( read( offset( x, y ) ) & PRESSURE_MASK ) >> PRESSURE_SHIFT;
+	}
+
+	public void setPressure( int x, int y, int value ) {
+		int tile = tile( x, y );
+		if ( !isPressurised[tile] ) {
+			if ( value == SimulationState.PRESSURE_NONE ) {
+				return;
+			}
+			isPressurised[tile] = true;
+			pressurised[numPressurised++] = tile;
+		}
+		long offset = offset( tile, x, y );
+		write( offset, ( read( offset ) & ~PRESSURE_MASK ) | ( value << PRESSURE_SHIFT ) );
+	}
+
+	public void clearPressure( ) {
+		for ( int i = 0; i < numPressurised; i++ ) {
+			int tile = pressurised[i];
+			long start = (long) tile << TILE_BYTES_BITS;
+			MappedByteBuffer segment = segments[(int) ( start >> SEGMENT_BITS )];
+			int position = (int) ( start & SEGMENT_MASK );
+			for ( int end = position + ( 1 << TILE_BYTES_BITS ); position < end; position++ ) {
+				byte cell = segment.get( position );
+				if ( ( cell & PRESSURE_MASK ) != 0 ) {
+					segment.put( position, (byte) ( cell & CELL_MASK ) );
+				}
+			}
+			isPressurised[tile] = false;
+		}
+		numPressurised = 0;
+	}
+
+	public int nextOccupied( int x, int y ) {
+		int row = ( y >> TILE_BITS ) * tilesWide;
+		while ( x < width && !occupied[row + ( x >> TILE_BITS )] ) {
+			x = ( ( x >> TILE_BITS ) + 1 ) << TILE_BITS;
+		}
+		return Math.min( x, width );
+	}
+
+	/**
+	 * @return a copy in another temporary file, which like every temporary
+	 *         grid needs no closing. Only occupied and pressurised tiles
+	 *         are copied, a page at a time.
+	 */
+	public CellGrid copy( ) {
+		MappedCellGrid copy;
+		try {
+			copy = new MappedCellGrid( width, height );
+		} catch ( IOException e ) {
+			throw new IllegalStateException( "cannot map a copy of a " + width + "x" + height + " board", e );
+		}
+
+		byte[] page = new byte[1 << TILE_BYTES_BITS];
+		for ( int tile = 0; tile < occupied.length; tile++ ) {
+			if ( occupied[tile] || isPressurised[tile] ) {
+				tileBuffer( tile ).get( page );
+				copy.tileBuffer( tile ).put( page );
+				copy.occupied[tile] = occupied[tile];
+				if ( isPressurised[tile] ) {
+					copy.isPressurised[tile] = true;
+					copy.pressurised[copy.numPressurised++] = tile;
+				}
+			}
+		}
+		return copy;
+	}
+
+
+	// a view of one tile's page; tiles never straddle segments
+	private ByteBuffer tileBuffer( int tile ) {
+		long start = (long) tile << TILE_BYTES_BITS;
+		ByteBuffer buffer = segments[(int) ( start >> SEGMENT_BITS )].duplicate( );
+		buffer.position( (int) ( start & SEGMENT_MASK ) );
+		return buffer;
+	}
+
+	private boolean contains( int x, int y ) {
+		return x >= 0 && y >= 0 && x < width && y < height;
+	}
+
+	private int tile( int x, int y ) {
+		return ( y >> TILE_BITS ) * tilesWide + ( x >> TILE_BITS );
+	}
+
+	private long offset( int x, int y ) {
+		return offset( tile( x, y ), x, y );
+	}
+
+	private long offset( int tile, int x, int y ) {
+		return ( (long) tile << TILE_BYTES_BITS ) | ( ( y & TILE_MASK ) << TILE_BITS ) | ( x & TILE_MASK );
+	}
+
+	private int read( long offset ) {
+		return segments[(int) ( offset >> SEGMENT_BITS )].get( (int) ( offset & SEGMENT_MASK ) );
+	}
+
+	private void write( long offset, int value ) {
+		segments[(int) ( offset >> SEGMENT_BITS )].put( (int) ( offset & SEGMENT_MASK ), (byte) value );
+	}
+}
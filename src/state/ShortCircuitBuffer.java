@@ -0,0 +1,95 @@
+package state;
+
+import java.awt.Point;
+
+/**
+ * Preallocated storage for every short circuit found in a step. Once it
+ * is full, further shorts are only counted.
+ */
+public class ShortCircuitBuffer {
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private int[] xs;
+	private int[] ys;
+	private int[] fillPressures;
+	private int[] existingPressures;
+	private int size = 0;
+	private int overflow = 0;
+
+	public ShortCircuitBuffer( ) {
+		this( DEFAULT_CAPACITY );
+	}
+
+	public ShortCircuitBuffer( int capacity ) {
+		xs = new int[capacity];
+		ys = new int[capacity];
+		fillPressures = new int[capacity];
+		existingPressures = new int[capacity];
+	}
+
+	public void clear( ) {
+		size = 0;
+		overflow = 0;
+	}
+
+	public void record( int x, int y, int fillPressure, int existingPressure ) {
+		if ( size < xs.length ) {
+			xs[size] = x;
+			ys[size] = y;
+			fillPressures[size] = fillPressure;
+			existingPressures[size] = existingPressure;
+			size++;
+		} else {
+			overflow++;
+		}
+	}
+
+	/**
+	 * @return the number of shorts stored
+	 */
+	public int size( ) {
+		return size;
+	}
+
+	/**
+	 * @return the number of shorts found, including any that did not fit
+	 */
+	public int getTotal( ) {
+		return size + overflow;
+	}
+
+	public int getX( int i ) {
+		return xs[i];
+	}
+
+	public int getY( int i ) {
+		return ys[i];
+	}
+
+	public Point getLocation( int i ) {
+		return new Point( xs[i], ys[i] );
+	}
+
+	public int getFillPressure( int i ) {
+		return fillPressures[i];
+	}
+
+	public int getExistingPressure( int i ) {
+		return existingPressures[i];
+	}
+
+	public ShortCircuitException toException( int i ) {
+		return new ShortCircuitException( xs[i], ys[i], fillPressures[i], existingPressures[i] );
+	}
+
+	public String toString( ) {
+		if ( size == 0 ) {
+			return "No short circuits";
+		}
+		String summary = toException( 0 ).toString( );
+		if ( getTotal( ) > 1 ) {
+			summary += " and " + ( getTotal( ) - 1 ) + " more";
+		}
+		return summary;
+	}
+}
@@ -0,0 +1,58 @@
+package state;
+
+/**
+ * A Zobrist hash of where a board's shuttles are: the XOR of a random
+ * key for each shuttle cell and its type. Pressure is recomputed every
+ * step and inputs are set before each use, so the shuttles are the
+ * whole of a board's state, and two boards with the same hash are, bar
+ * a 64 bit collision, in the same configuration.
+ *
+ * Attached to a SimulationState, the hash is updated as each cell
+ * changes, so following a board costs two XORs per shuttle move rather
+ * than a scan. Keys are mixed from the cell's position and type, so no
+ * table is kept and hashes agree between boards of the same size.
+ */
+public class ShuttleHash {
+	private int width;
+	private long value;
+
+	/**
+	 * Hashes the shuttles on a board by scanning it.
+	 */
+	public ShuttleHash( SimulationState state ) {
+		this.width = state.getWidth( );
+		CellGrid grid = state.grid;
+		for ( int y = 0; y < state.getHeight( ); y++ ) {
+			for ( int x = grid.nextOccupied( 0, y ); x < width; x = grid.nextOccupied( x + 1, y ) ) {
+				value ^= key( x, y, grid.getCell( x, y ) );
+			}
+		}
+	}
+
+	/**
+	 * Carries on from a known hash, for a copy of a hashed board.
+	 */
+	public ShuttleHash( ShuttleHash other ) {
+		this.width = other.width;
+		this.value = other.value;
+	}
+
+	public long getValue( ) {
+		return value;
+	}
+
+	void changed( int x, int y, int from, int to ) {
+		value ^= key( x, y, from ) ^ key( x, y, to );
+	}
+
+	private long key( int x, int y, int cell ) {
+		if ( cell != SimulationState.THRU_SHUTTLE && cell != SimulationState.BLOCK_SHUTTLE ) {
+			return 0;
+		}
+		// splitmix64 finaliser over the cell index and type
+		long z = ( ( (long) y * width + x ) << 1 | ( cell - SimulationState.THRU_SHUTTLE ) ) * 0x9E3779B97F4A7C15L;
+		z = ( z ^ ( z >>> 30 ) ) * 0xBF58476D1CE4E5B9L;
+		z = ( z ^ ( z >>> 27 ) ) * 0x94D049BB133111EBL;
+		return z ^ ( z >>> 31 );
+	}
+}
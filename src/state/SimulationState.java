@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import javax.imageio.ImageIO;
@@ -29,6 +30,9 @@ public class SimulationState {
 	public static final int PRESSURE_VENT = 2;
 	public static final int PRESSURE_POS  = 3;
 	
+	// boards smaller than this stay on the heap even when mapping is asked for
+	public static final long MIN_MAPPED_CELLS = 1L << 24;
+	
 	public static final int[] bitmapColours = new int[] {
 		0xFF000000,
 		0xFFffffff,
@@ -45,34 +49,130 @@ public class SimulationState {
 	
 
 	
-	protected int[][] state;
-	protected int[][] pressure;
+	protected CellGrid grid;
 	
 	protected int width, height;
 	
 	protected ArrayList<Point> inputs;
 	protected ArrayList<Point> outputs;
 	protected HashMap<Integer, ConnectionNet> nets = new HashMap<Integer, ConnectionNet>( );
+	protected HashMap<Point, ConnectionNet> netPoints = new HashMap<Point, ConnectionNet>( );
+	protected ArrayList<SubCircuitInstance> instances = new ArrayList<SubCircuitInstance>( );
+	
+	// bumped whenever a cell changes type, so callers can tell if the layout moved
+	protected long revision = 0;
+	// and whenever a net is added or loses points
+	protected long netRevision = 0;
+	
+	// ids for nets added after loading; bitmap nets use their (negative) ARGB colour
+	protected int nextNetID = 1;
+	protected boolean netsShared = false;
+	
+	// running count of cells the pressure fill has looked at
+	protected long cellsVisited = 0;
+	
+	// follows shuttle moves, if set
+	protected ShuttleHash shuttleHash = null;
+	
+	// per row, [from, to) pairs of areas the fill is not started in; null means none
+	protected int[][] fillSkips = null;
 	
 	public enum Direction { NONE, LEFT, RIGHT, UP, DOWN };
 	// Constructors
 	
 	public SimulationState( int width, int height ) {
-		this.state = new int[width][height];
-		this.pressure = new int[width][height];
-		this.width = width;
-		this.height = height;
+		this( createGrid( width, height ) );
+	}
+	
+	/**
+	 * An empty board stored in the given grid.
+	 */
+	public SimulationState( CellGrid grid ) {
+		this.grid = grid;
+		this.width = grid.getWidth( );
+		this.height = grid.getHeight( );
 		
 		this.inputs  = new ArrayList<Point>( );
 		this.outputs = new ArrayList<Point>( );
 	}
 	
+	/**
+	 * Boards are kept on the heap in chunks, or with -Dsteamos.grid=mapped
+	 * in a memory-mapped file, for boards larger than the heap. Only boards
+	 * of at least "steamos.grid.mapMin" cells, by default MIN_MAPPED_CELLS,
+	 * are mapped; templates and small boards stay on the heap.
+	 */
+	protected static CellGrid createGrid( int width, int height ) {
+		if ( "mapped".equals( System.getProperty( "steamos.grid" ) )
+				&& (long) width * height >= Long.getLong( "steamos.grid.mapMin", MIN_MAPPED_CELLS ) ) {
+			try {
+				return new MappedCellGrid( width, height );
+			} catch ( IOException e ) {
+				throw new IllegalStateException( "cannot map a " + width + "x" + height + " board", e );
+			}
+		}
+		return new ChunkedCellGrid( width, height );
+	}
+	
+	/**
+	 * Lets go of the board's storage, which only a memory-mapped board holds
+	 * off the heap. The state cannot be used afterwards.
+	 */
+	public void close( ) throws IOException {
+		if ( grid instanceof MappedCellGrid ) {
+			( (MappedCellGrid) grid ).close( );
+		}
+	}
+	
+	/**
+	 * Copies the cells, pressures and inputs of another state. The nets are
+	 * shared until either side adds one.
+	 */
+	public SimulationState( SimulationState other ) {
+		this.width  = other.width;
+		this.height = other.height;
+		this.grid   = other.grid.copy( );
+		
+		this.inputs    = new ArrayList<Point>( other.inputs );
+		this.outputs   = new ArrayList<Point>( other.outputs );
+		this.nets      = other.nets;
+		this.netPoints = other.netPoints;
+		this.netsShared = true;
+		other.netsShared = true;
+		this.nextNetID = other.nextNetID;
+		this.revision  = other.revision;
+		this.netRevision = other.netRevision;
+		this.instances = new ArrayList<SubCircuitInstance>( other.instances );
+	}
+	
 	public SimulationState( URL imageURL ) throws IOException {
-		this( ImageIO.read( imageURL ) );
+		this( checkImage( ImageIO.read( imageURL ), imageURL.toString( ) ) );
 	}
 	
 	public SimulationState( File imageFile ) throws IOException {
-		this( ImageIO.read( imageFile ) );
+		this( checkImage( ImageIO.read( imageFile ), imageFile.getPath( ) ) );
+	}
+
+	/**
+	 * Reads a board in whichever format its name says: a ".layout" of
+	 * placed templates, a ".board" text file, or otherwise a bitmap.
+	 */
+	public static SimulationState load( File boardFile ) throws IOException {
+		String name = boardFile.getName( );
+		if ( name.endsWith( ".layout" ) ) {
+			return BoardLayout.load( boardFile ).getState( );
+		} else if ( name.endsWith( ".board" ) ) {
+			return AsciiBoardFormat.read( boardFile );
+		}
+		return new SimulationState( boardFile );
+	}
+
+	// ImageIO returns null rather than throwing for files it cannot decode
+	private static BufferedImage checkImage( BufferedImage image, String name ) throws IOException {
+		if ( image == null ) {
+			throw new IOException( name + " is not an image" );
+		}
+		return image;
 	}
 	
 	public SimulationState( BufferedImage stateImage ) {
@@ -84,8 +184,7 @@ public class SimulationState {
 		
 		this.width  = stateImage.getWidth();
 		this.height = stateImage.getHeight();
-		this.state  = new int[width][height];
-		this.pressure = new int[width][height];
+		this.grid   = createGrid( width, height );
 
 		this.inputs  = new ArrayList<Point>( );
 		this.outputs = new ArrayList<Point>( );
@@ -98,24 +197,25 @@ public class SimulationState {
 				// look up the colour to see if it's classifiable
 				if ( colourLookup.containsKey( rgb ) ) {
 					// classified
-					state[x][y] = colourLookup.get( rgb );
+					int cell = colourLookup.get( rgb );
+					grid.setCell( x, y, cell );
 					
 					// keep track of inputs and outputs
-					if ( state[x][y] == INPUT ) {
+					if ( cell == INPUT ) {
 						inputs.add( gridPoint );
-					} else if ( state[x][y] == OUTPUT ) {
+					} else if ( cell == OUTPUT ) {
 						outputs.add( gridPoint );
 					}
 				} else if ( nets.containsKey( rgb ) ) {
 					// keep track of nets
 					nets.get( rgb ).addPoint( gridPoint );
-					state[x][y] = CHANNEL;
+					netPoints.put( gridPoint, nets.get( rgb ) );
+					grid.setCell( x, y, CHANNEL );
 				} else {
 					nets.put( rgb, new ConnectionNet( new Point[] { gridPoint }, rgb ) );
-					state[x][y] = CHANNEL;
+					netPoints.put( gridPoint, nets.get( rgb ) );
+					grid.setCell( x, y, CHANNEL );
 				}
-				
-				pressure[x][y] = PRESSURE_NONE;
 			}
 		}
 	}
@@ -124,17 +224,125 @@ public class SimulationState {
 	// Public methods
 	
 	public ConnectionNet getNetConnection( Point gridPoint ) {
-		for ( ConnectionNet net : nets.values() ) {
-			if ( net.containsPoint( gridPoint ) ) {
-				return net;
+		return netPoints.get( gridPoint );
+	}
+	
+	public ArrayList<ConnectionNet> getNets( ) {
+		return new ArrayList<ConnectionNet>( nets.values( ) );
+	}
+	
+	public ConnectionNet getNet( int id ) {
+		return nets.get( id );
+	}
+	
+	public long getNetRevision( ) {
+		return netRevision;
+	}
+	
+	/**
+	 * Adds a net joining the given points, which must not already be on a net.
+	 */
+	public ConnectionNet addNet( Point[] points, int colour ) {
+		for ( Point point : points ) {
+			if ( netPoints.containsKey( point ) ) {
+				throw new IllegalArgumentException( point.x + "," + point.y + " is already on a net" );
 			}
 		}
+		unshareNets( );
 		
-		return null;
+		while ( nets.containsKey( nextNetID ) ) {
+			nextNetID++;
+		}
+		
+		ConnectionNet net = new ConnectionNet( points, nextNetID++, colour );
+		nets.put( net.getID( ), net );
+		for ( Point point : points ) {
+			netPoints.put( point, net );
+		}
+		netRevision++;
+		return net;
+	}
+	
+	/**
+	 * Stamps a copy of a template's cells, inputs, outputs and nets onto
+	 * the board with its top left corner at the given offset. Host nets
+	 * lose the points the template covers.
+	 * @return the placed instance, which the board keeps
+	 */
+	public SubCircuitInstance placeTemplate( CircuitTemplate template, int offsetX, int offsetY ) {
+		if ( offsetX < 0 || offsetY < 0
+				|| offsetX + template.getWidth( ) > width || offsetY + template.getHeight( ) > height ) {
+			throw new IllegalArgumentException( template.getName( ) + " does not fit at (" + offsetX + "," + offsetY + ")" );
+		}
+		removeNetPoints( offsetX, offsetY, template.getWidth( ), template.getHeight( ) );
+		
+		SubCircuitInstance instance = new SubCircuitInstance( template, offsetX, offsetY, inputs.size( ), outputs.size( ) );
+		for ( int y = 0; y < template.getHeight( ); y++ ) {
+			for ( int x = 0; x < template.getWidth( ); x++ ) {
+				setCell( offsetX + x, offsetY + y, template.getCell( x, y ) );
+				grid.setPressure( offsetX + x, offsetY + y, PRESSURE_NONE );
+			}
+		}
+		
+		for ( Point input : template.getInputs( ) ) {
+			inputs.add( new Point( offsetX + input.x, offsetY + input.y ) );
+		}
+		for ( Point output : template.getOutputs( ) ) {
+			outputs.add( new Point( offsetX + output.x, offsetY + output.y ) );
+		}
+		
+		for ( int n = 0; n < template.getNumNets( ); n++ ) {
+			Point[] netPoints = template.getNetPoints( n );
+			Point[] placed = new Point[netPoints.length];
+			for ( int i = 0; i < netPoints.length; i++ ) {
+				placed[i] = new Point( offsetX + netPoints[i].x, offsetY + netPoints[i].y );
+			}
+			addNet( placed, template.getNetColour( n ) );
+		}
+		
+		instances.add( instance );
+		return instance;
+	}
+	
+	/**
+	 * @return the templates placed on the board, in order
+	 */
+	public ArrayList<SubCircuitInstance> getInstances( ) {
+		return instances;
 	}
 	
 	public void setCell( int x, int y, int value ) {
-		state[x][y] = value;
+		int cell = grid.getCell( x, y );
+		if ( cell != value ) {
+			grid.setCell( x, y, value );
+			revision++;
+			if ( shuttleHash != null ) {
+				shuttleHash.changed( x, y, cell, value );
+			}
+		}
+	}
+	
+	/**
+	 * Keeps a hash of the shuttle positions up to date as cells change.
+	 * Copies of the state do not carry it over.
+	 */
+	public void setShuttleHash( ShuttleHash shuttleHash ) {
+		this.shuttleHash = shuttleHash;
+	}
+	
+	public ShuttleHash getShuttleHash( ) {
+		return shuttleHash;
+	}
+	
+	/**
+	 * Stops the fill starting from entries inside the given areas, which
+	 * the caller steps some other way and must keep sealed off from the
+	 * rest of the board. Copies of the state do not carry them over.
+	 * @param rowSkips per row, sorted [from, to) pairs of x, or null for
+	 *        a row without any; null clears them all
+	 */
+	public void setFillSkips( int[][] rowSkips ) {
+		this.fillSkips = rowSkips;
 	}
 	
 	public void setCell( Point gridPoint, int value ) {
@@ -142,23 +350,39 @@ public class SimulationState {
 	}
 	
 	public int getCell( int x, int y ) {
-		return state[x][y];
+		return grid.getCell( x, y );
 	}
 	
 	public int getCell( Point gridPoint ) {
 		return getCell( gridPoint.x, gridPoint.y );
 	}
 	
+	/**
+	 * Lets a scan along a row skip stretches that are known to be solid.
+	 * @return the first x at or after the given one that may hold a
+	 *         non-solid cell, or the width if there is none
+	 */
+	public int nextOccupied( int x, int y ) {
+		return grid.nextOccupied( x, y );
+	}
+
 	public int getPressure( int x, int y ) {
-		return pressure[x][y];
+		return grid.getPressure( x, y );
 	}
-	
+
 	public int getPressure( Point gridPoint ) {
 		return getPressure( gridPoint.x, gridPoint.y );
 	}
 	
+	/**
+	 * Sets a pressure by hand; it lasts until the next step clears them.
+	 */
+	public void setPressure( int x, int y, int pressureVal ) {
+		grid.setPressure( x, y, pressureVal );
+	}
+	
 	private void setPressure( Point gridPoint, int pressureVal ) {
-		pressure[gridPoint.x][gridPoint.y] = pressureVal;
+		grid.setPressure( gridPoint.x, gridPoint.y, pressureVal );
 	}
 	
 	public int getWidth( ) {
@@ -169,6 +393,14 @@ public class SimulationState {
 		return this.height;
 	}
 	
+	public long getRevision( ) {
+		return revision;
+	}
+	
+	public long getCellsVisited( ) {
+		return cellsVisited;
+	}
+	
 	public ArrayList<Point> getInputs( ) {
 		return inputs;
 	}
@@ -178,45 +410,22 @@ public class SimulationState {
 	}
 	
 	public void printDebug( ) {
-		char[] outputChars = new char[] {
-			'#',
-			' ',
-			'"',
-			':',
-			'~',
-			'*',
-			'-',
-			'+',
-			'0',
-			'^',
-			'v'
-		};
-			
-		for ( int y = 0; y < height; y++ ) {
-			for ( int x = 0; x < width; x++ ) {
-				if ( state[x][y] < outputChars.length ) {
-					System.out.print( outputChars[state[x][y]] );
-				} else {
-					System.out.print( "?" );
-				}
-			}
-			System.out.println( );
+		try {
+			AsciiBoardFormat.writeCells( this, System.out );
+		} catch ( IOException e ) {
+			// System.out does not throw
 		}
 	}
 	
 	public void clearChannels( ) {
-		for ( int y = 0; y < height; y++ ) {
-			for ( int x = 0; x < width; x++ ) {
-				pressure[x][y] = PRESSURE_NONE;
-			}
-		}
+		grid.clearPressure( );
 	}
 
 	public ArrayList<Point> getAllOfType( int type ) {
 		ArrayList<Point> collection = new ArrayList<Point> ( );
 		for ( int y = 0; y < height; y++ ) {
-			for ( int x = 0; x < width; x++ ) {
-				if ( state[x][y] == type ) {
+			for ( int x = grid.nextOccupied( 0, y ); x < width; x = grid.nextOccupied( x + 1, y ) ) {
+				if ( grid.getCell( x, y ) == type ) {
 					collection.add( new Point( x, y ) );
 				}
 			}
@@ -225,10 +434,28 @@ public class SimulationState {
 	}
 	
 	public void fillPressure( int entryType, int pressureType, ArrayList<ShuttleShift> shuttlePressurePoints ) throws ShortCircuitException {
-		ArrayList<Point> entries = getAllOfType( entryType );
+		ArrayList<Point> entries = findEntries( entryType );
 
 		for ( Point startPoint : entries ) {
-			fillChannels( startPoint, pressureType, Direction.NONE, shuttlePressurePoints );
+			fillChannels( startPoint.x, startPoint.y, pressureType, shuttlePressurePoints, null );
+		}
+	}
+	
+	/**
+	 * Fills like fillPressure, but a short circuit is recorded and treated as
+	 * a dead end instead of aborting, so every short is found and the fill
+	 * always completes.
+	 */
+	public void fillPressure( int entryType, int pressureType, ArrayList<ShuttleShift> shuttlePressurePoints, ShortCircuitBuffer shortCircuits ) {
+		ArrayList<Point> entries = findEntries( entryType );
+
+		try {
+			for ( Point startPoint : entries ) {
+				fillChannels( startPoint.x, startPoint.y, pressureType, shuttlePressurePoints, shortCircuits );
+			}
+		} catch ( ShortCircuitException e ) {
+			// only thrown when there is no buffer to collect into
+			throw new IllegalStateException( e );
 		}
 	}
 	
@@ -236,6 +463,81 @@ public class SimulationState {
 	
 	// Private methods
 	
+	// the entries the fill starts from, outside any skipped areas
+	private ArrayList<Point> findEntries( int type ) {
+		ArrayList<Point> collection = new ArrayList<Point>( );
+		for ( int y = 0; y < height; y++ ) {
+			int[] skips = ( fillSkips != null ) ? fillSkips[y] : null;
+			int skip = 0;
+			for ( int x = grid.nextOccupied( 0, y ); x < width; x = grid.nextOccupied( x + 1, y ) ) {
+				if ( skips != null ) {
+					while ( skip < skips.length && skips[skip + 1] <= x ) {
+						skip += 2;
+					}
+					if ( skip < skips.length && skips[skip] <= x ) {
+						x = skips[skip + 1] - 1;
+						continue;
+					}
+				}
+				if ( grid.getCell( x, y ) == type ) {
+					collection.add( new Point( x, y ) );
+				}
+			}
+		}
+		return collection;
+	}
+	
+	private void unshareNets( ) {
+		if ( netsShared ) {
+			nets = new HashMap<Integer, ConnectionNet>( nets );
+			netPoints = new HashMap<Point, ConnectionNet>( netPoints );
+			netsShared = false;
+		}
+	}
+	
+	/*
+	 * Takes the points in an area off their nets. Nets may be shared with
+	 * copies, so a net that loses points is replaced rather than changed.
+	 */
+	private void removeNetPoints( int left, int top, int areaWidth, int areaHeight ) {
+		ArrayList<ConnectionNet> touched = new ArrayList<ConnectionNet>( );
+		Point lookup = new Point( );
+		for ( int y = top; y < top + areaHeight; y++ ) {
+			for ( int x = left; x < left + areaWidth; x++ ) {
+				lookup.setLocation( x, y );
+				ConnectionNet net = netPoints.get( lookup );
+				if ( net != null && !touched.contains( net ) ) {
+					touched.add( net );
+				}
+			}
+		}
+		if ( touched.isEmpty( ) ) {
+			return;
+		}
+		
+		unshareNets( );
+		for ( ConnectionNet net : touched ) {
+			ArrayList<Point> kept = new ArrayList<Point>( );
+			for ( Point point : net.getPoints( ) ) {
+				if ( point.x >= left && point.y >= top && point.x < left + areaWidth && point.y < top + areaHeight ) {
+					netPoints.remove( point );
+				} else {
+					kept.add( point );
+				}
+			}
+			if ( kept.isEmpty( ) ) {
+				nets.remove( net.getID( ) );
+			} else {
+				ConnectionNet replacement = new ConnectionNet( kept.toArray( new Point[kept.size( )] ), net.getID( ), net.getColour( ) );
+				nets.put( net.getID( ), replacement );
+				for ( Point point : kept ) {
+					netPoints.put( point, replacement );
+				}
+			}
+		}
+		netRevision++;
+	}
+	
 	private int entryForPressure( int channelType ) {
 		if ( channelType == PRESSURE_NEG ) {
 			return SINK;
@@ -257,17 +559,62 @@ public class SimulationState {
 		return Direction.NONE;
 	}
 	
-	private void fillChannels( Point currPoint, int fillType, Direction fromDirection, ArrayList<ShuttleShift> shuttlePressurePoints ) throws ShortCircuitException {
-		int x = currPoint.x;
-		int y = currPoint.y;
+	// the fill's pending cells, reused between fills
+	private int[] fillStack = new int[64];
+	private int fillStackSize = 0;
+	private final Point netLookup = new Point( );
+	private static final Direction[] directions = Direction.values( );
+	
+	private void pushFill( int x, int y, Direction fromDirection ) {
+		if ( fillStackSize + 3 > fillStack.length ) {
+			fillStack = Arrays.copyOf( fillStack, fillStack.length * 2 );
+		}
+		fillStack[fillStackSize++] = fromDirection.ordinal( );
+		fillStack[fillStackSize++] = y;
+		fillStack[fillStackSize++] = x;
+	}
+	
+	/*
+	 * A depth-first flood from one entry. Neighbours are pushed in reverse
+	 * so they are popped, and checked, in the same order the recursive
+	 * fill used to visit them: right, left, down, up, then net points.
+	 */
+	private void fillChannels( int startX, int startY, int fillType, ArrayList<ShuttleShift> shuttlePressurePoints, ShortCircuitBuffer shortCircuits ) throws ShortCircuitException {
+		fillStackSize = 0;
+		pushFill( startX, startY, Direction.NONE );
 		
-		if ( x >= 0 && y >= 0 && x < width && y < height ) {
-			// stay within bounds
+		while ( fillStackSize > 0 ) {
+			int x = fillStack[--fillStackSize];
+			int y = fillStack[--fillStackSize];
+			Direction fromDirection = directions[fillStack[--fillStackSize]];
 			
-			if ( state[x][y] == BLOCK_SHUTTLE ) {
+			if ( x < 0 || y < 0 || x >= width || y >= height ) {
+				// stay within bounds
+				continue;
+			}
+			cellsVisited++;
+			
+			int cell = grid.getCell( x, y );
+			if ( cell == SOLID ) {
+				// walls, including every cell of an empty chunk
+				continue;
+			}
+			
+			int cellPressure = grid.getPressure( x, y );
+			if ( cell == BLOCK_SHUTTLE ) {
 				// pressure pushing or pulling a shuttle
-				Point previousCell = adjacentPoint( currPoint, oppositeDirection( fromDirection ) );
-				if ( getCell( previousCell ) != THRU_SHUTTLE ) {
+				int previousX = x;
+				int previousY = y;
+				switch ( oppositeDirection( fromDirection ) ) {
+				case LEFT : previousX--; break;
+				case RIGHT: previousX++; break;
+				case UP   : previousY--; break;
+				case DOWN : previousY++; break;
+				}
+				
+				boolean previousIsThru = previousX >= 0 && previousY >= 0 && previousX < width && previousY < height
+					&& grid.getCell( previousX, previousY ) == THRU_SHUTTLE;
+				if ( !previousIsThru ) {
 					// don't split shuttles
 					ShuttleShift pressureShift = new ShuttleShift( );
 					pressureShift.direction = fromDirection;
@@ -275,48 +622,57 @@ public class SimulationState {
 					pressureShift.pressure  = fillType;
 					shuttlePressurePoints.add( pressureShift );
 				}
-			} else if ( pressure[x][y] == fillType ) {
+			} else if ( cellPressure == fillType ) {
 				// dead end
-			} else if ( pressure[x][y] != PRESSURE_NONE ) {
+			} else if ( cellPressure != PRESSURE_NONE ) {
 				// came adjacent to a conflicting pressure, this is bad
-				throw new ShortCircuitException( x, y, fillType, pressure[x][y] );
-			} else if ( state[x][y] == CHANNEL 
-					||  state[x][y] == OUTPUT
-					||  state[x][y] == entryForPressure( fillType ) 
-					||  state[x][y] == V_NARROW
-					||  state[x][y] == H_NARROW
-					||  state[x][y] == THRU_SHUTTLE ) {
+				if ( shortCircuits == null ) {
+					throw new ShortCircuitException( x, y, fillType, cellPressure );
+				}
+				shortCircuits.record( x, y, fillType, cellPressure );
+			} else if ( cell == CHANNEL 
+					||  cell == OUTPUT
+					||  cell == entryForPressure( fillType ) 
+					||  cell == V_NARROW
+					||  cell == H_NARROW
+					||  cell == THRU_SHUTTLE ) {
 				
 				// pressurise an empty channel, or a pressure entry point
-				pressure[x][y] = fillType;
-				
-				// spread to surrounding cells
+				grid.setPressure( x, y, fillType );
 				
-				if ( state[x][y] != V_NARROW ) {
-					fillChannels( new Point( x+1, y   ), fillType, Direction.RIGHT, shuttlePressurePoints );
-					fillChannels( new Point( x-1, y   ), fillType, Direction.LEFT,  shuttlePressurePoints );
+				// spread to connected nets, popped last
+				netLookup.setLocation( x, y );
+				ConnectionNet net = netPoints.get( netLookup );
+				if ( net != null ) {
+					ArrayList<Point> points = net.getPoints( );
+					for ( int i = points.size( ) - 1; i >= 0; i-- ) {
+						pushFill( points.get( i ).x, points.get( i ).y, Direction.NONE );
+					}
 				}
 				
-				if ( state[x][y] != H_NARROW ) {
-					fillChannels( new Point( x  , y+1 ), fillType, Direction.DOWN,  shuttlePressurePoints );
-					fillChannels( new Point( x  , y-1 ), fillType, Direction.UP,    shuttlePressurePoints );
+				// spread to surrounding cells
+				
+				if ( cell != H_NARROW ) {
+					pushFill( x  , y-1, Direction.UP    );
+					pushFill( x  , y+1, Direction.DOWN  );
 				}
 				
-				// spread to connected nets
-				ConnectionNet net = getNetConnection( new Point( x, y ) );
-				if ( net != null ) {
-					for ( Point netPoint : net.getPoints( ) ) {
-						fillChannels( netPoint, fillType, Direction.NONE,  shuttlePressurePoints );
-					}
+				if ( cell != V_NARROW ) {
+					pushFill( x-1, y  , Direction.LEFT  );
+					pushFill( x+1, y  , Direction.RIGHT );
 				}
 			}
 		}
 	}
 
-	public void shiftShuttles( ArrayList<ShuttleShift> shuttlePressurePoints ) {
+	public int shiftShuttles( ArrayList<ShuttleShift> shuttlePressurePoints ) {
+		int numShifted = 0;
 		for ( ShuttleShift pressurePoint : shuttlePressurePoints ) {
-			shiftShuttleCell( pressurePoint.position, pressurePoint.direction, pressurePoint.pressure );
+			if ( shiftShuttleCell( pressurePoint.position, pressurePoint.direction, pressurePoint.pressure ) ) {
+				numShifted++;
+			}
 		}
+		return numShifted;
 	}
 	
 	private Point adjacentPoint( Point gridSquare, Direction direction ) {
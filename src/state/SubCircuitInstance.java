@@ -0,0 +1,42 @@
+package state;
+
+/**
+ * A template placed on a board. Its inputs and outputs are a contiguous
+ * run of the board's inputs and outputs, starting at the given indices.
+ * The board keeps its instances, so a Simulator can step each one by its
+ * template's memoized behaviour.
+ */
+public class SubCircuitInstance {
+	private CircuitTemplate template;
+	private int x, y;
+	private int firstInput;
+	private int firstOutput;
+
+	public SubCircuitInstance( CircuitTemplate template, int x, int y, int firstInput, int firstOutput ) {
+		this.template = template;
+		this.x = x;
+		this.y = y;
+		this.firstInput = firstInput;
+		this.firstOutput = firstOutput;
+	}
+
+	public CircuitTemplate getTemplate( ) {
+		return template;
+	}
+
+	public int getX( ) {
+		return x;
+	}
+
+	public int getY( ) {
+		return y;
+	}
+
+	public int getFirstInput( ) {
+		return firstInput;
+	}
+
+	public int getFirstOutput( ) {
+		return firstOutput;
+	}
+}
@@ -0,0 +1,339 @@
+package view;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import simulation.Simulator;
+import state.ShortCircuitBuffer;
+import state.ShortCircuitException;
+import state.SimulationState;
+
+/**
+ * Records a run without a window. Every Nth step is rendered offscreen
+ * on the simulating thread, then handed over a bounded queue to an
+ * encoder thread writing either numbered PNGs into a directory or, for
+ * a ".gif" output, one animated GIF.
+ *
+ * Frames are drawn into a fixed pool of images, so memory stays bounded
+ * however far the encoder falls behind. When the pool runs out the
+ * capturing thread waits for the encoder, or, if frames may be dropped,
+ * skips the frame and carries on at full speed.
+ */
+public class FrameCapture {
+	public static final int DEFAULT_QUEUE_SIZE = 8;
+
+	private SimulationState state;
+	private StateRenderer renderer;
+	private int interval;
+	private boolean dropFrames = false;
+
+	private File output;
+	private boolean animated;
+	private int frameDelay = 100;
+
+	private BlockingQueue<Frame> pending;
+	private BlockingQueue<BufferedImage> free;
+	private int numImages = 0;
+	private int maxImages;
+
+	private int numCaptured = 0;
+	private int numDropped = 0;
+	private volatile IOException failure = null;
+
+	private Thread encoder;
+
+	private static class Frame {
+		BufferedImage image;
+		int index;
+
+		Frame( BufferedImage image, int index ) {
+			this.image = image;
+			this.index = index;
+		}
+	}
+
+	// queued after the last frame to stop the encoder
+	private static final Frame END = new Frame( null, -1 );
+
+	/**
+	 * @param output a directory for a PNG sequence, or a file ending in
+	 *        ".gif" for an animated GIF
+	 * @param interval capture every this many steps
+	 */
+	public FrameCapture( SimulationState state, File output, int interval ) {
+		this( state, output, interval, DEFAULT_QUEUE_SIZE );
+	}
+
+	public FrameCapture( SimulationState state, File output, int interval, int queueSize ) {
+		this.state = state;
+		this.renderer = new StateRenderer( state );
+		this.output = output;
+		this.interval = Math.max( 1, interval );
+		this.animated = output.getName( ).toLowerCase( ).endsWith( ".gif" );
+
+		this.maxImages = queueSize + 1;
+		// room for every image plus the end marker, so putting never waits
+		this.pending = new ArrayBlockingQueue<Frame>( maxImages + 1 );
+		this.free = new ArrayBlockingQueue<BufferedImage>( maxImages );
+	}
+
+	public void setDropFrames( boolean dropFrames ) {
+		this.dropFrames = dropFrames;
+	}
+
+	/**
+	 * @param frameDelay milliseconds each frame is shown for in a GIF
+	 */
+	public void setFrameDelay( int frameDelay ) {
+		this.frameDelay = frameDelay;
+	}
+
+	public int getNumCaptured( ) {
+		return numCaptured;
+	}
+
+	public int getNumDropped( ) {
+		return numDropped;
+	}
+
+	public void start( ) throws IOException {
+		if ( animated ) {
+			File parent = output.getAbsoluteFile( ).getParentFile( );
+			if ( parent != null && !parent.isDirectory( ) && !parent.mkdirs( ) ) {
+				throw new IOException( "cannot create directory " + parent );
+			}
+		} else if ( !output.isDirectory( ) && !output.mkdirs( ) ) {
+			throw new IOException( "cannot create directory " + output );
+		}
+
+		encoder = new Thread( "frame encoder" ) {
+			public void run( ) {
+				try {
+					encode( );
+				} catch ( IOException e ) {
+					failure = e;
+				} catch ( InterruptedException e ) {
+				} catch ( Throwable e ) {
+					// anything else would leave capture waiting on images never freed
+					failure = new IOException( "frame encoder failed: " + e, e );
+				}
+			}
+		};
+		encoder.setDaemon( true );
+		encoder.start( );
+	}
+
+	/**
+	 * Call after each step; renders the board if this step is captured.
+	 */
+	public void capture( long step ) throws IOException, InterruptedException {
+		if ( failure != null ) {
+			throw failure;
+		}
+		if ( step % interval != 0 ) {
+			return;
+		}
+
+		BufferedImage image = free.poll( );
+		if ( image == null ) {
+			if ( numImages < maxImages ) {
+				image = createImage( );
+				numImages++;
+			} else if ( dropFrames ) {
+				numDropped++;
+				return;
+			} else {
+				while ( ( image = free.poll( 100, TimeUnit.MILLISECONDS ) ) == null ) {
+					if ( failure != null ) {
+						throw failure;
+					}
+				}
+			}
+		}
+
+		Graphics2D g = image.createGraphics( );
+		try {
+			renderer.render( g );
+		} finally {
+			g.dispose( );
+		}
+		pending.put( new Frame( image, numCaptured++ ) );
+	}
+
+	/**
+	 * Waits for the queued frames to be written and closes the output.
+	 */
+	public void finish( ) throws IOException, InterruptedException {
+		if ( encoder != null ) {
+			pending.put( END );
+			encoder.join( );
+			encoder = null;
+		}
+		if ( failure != null ) {
+			throw failure;
+		}
+	}
+
+
+	private BufferedImage createImage( ) {
+		int pitch = renderer.getSquareSize( ) + renderer.getSpacing( );
+		return new BufferedImage( state.getWidth( ) * pitch, state.getHeight( ) * pitch, BufferedImage.TYPE_INT_RGB );
+	}
+
+	private void encode( ) throws IOException, InterruptedException {
+		if ( !animated ) {
+			Frame frame;
+			while ( ( frame = pending.take( ) ) != END ) {
+				File file = new File( output, String.format( "frame-%05d.png", frame.index ) );
+				if ( !ImageIO.write( frame.image, "png", file ) ) {
+					throw new IOException( "no PNG writer available" );
+				}
+				free.put( frame.image );
+			}
+			return;
+		}
+
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName( "gif" );
+		if ( !writers.hasNext( ) ) {
+			throw new IOException( "no GIF writer available" );
+		}
+		ImageWriter writer = writers.next( );
+		if ( output.exists( ) ) {
+			output.delete( );
+		}
+		ImageOutputStream out = ImageIO.createImageOutputStream( output );
+		if ( out == null ) {
+			throw new IOException( "cannot write " + output );
+		}
+		try {
+			writer.setOutput( out );
+			writer.prepareWriteSequence( null );
+
+			Frame frame;
+			while ( ( frame = pending.take( ) ) != END ) {
+				ImageWriteParam param = writer.getDefaultWriteParam( );
+				IIOMetadata metadata = writer.getDefaultImageMetadata( new ImageTypeSpecifier( frame.image ), param );
+				addAnimation( metadata, frame.index == 0 );
+				writer.writeToSequence( new IIOImage( frame.image, null, metadata ), param );
+				free.put( frame.image );
+			}
+
+			writer.endWriteSequence( );
+		} finally {
+			writer.dispose( );
+			out.close( );
+		}
+	}
+
+	// frame delay, plus looping forever on the first frame
+	private void addAnimation( IIOMetadata metadata, boolean first ) throws IOException {
+		String format = metadata.getNativeMetadataFormatName( );
+		IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree( format );
+
+		IIOMetadataNode control = child( root, "GraphicControlExtension" );
+		control.setAttribute( "disposalMethod", "none" );
+		control.setAttribute( "userInputFlag", "FALSE" );
+		control.setAttribute( "transparentColorFlag", "FALSE" );
+		control.setAttribute( "delayTime", Integer.toString( frameDelay / 10 ) );
+		control.setAttribute( "transparentColorIndex", "0" );
+
+		if ( first ) {
+			IIOMetadataNode loop = new IIOMetadataNode( "ApplicationExtension" );
+			loop.setAttribute( "applicationID", "NETSCAPE" );
+			loop.setAttribute( "authenticationCode", "2.0" );
+			loop.setUserObject( new byte[] { 1, 0, 0 } );
+			child( root, "ApplicationExtensions" ).appendChild( loop );
+		}
+
+		metadata.setFromTree( format, root );
+	}
+
+	private static IIOMetadataNode child( IIOMetadataNode parent, String name ) {
+		for ( int i = 0; i < parent.getLength( ); i++ ) {
+			if ( parent.item( i ).getNodeName( ).equals( name ) ) {
+				return (IIOMetadataNode) parent.item( i );
+			}
+		}
+		IIOMetadataNode node = new IIOMetadataNode( name );
+		parent.appendChild( node );
+		return node;
+	}
+
+
+	/**
+	 * Records a board headlessly.
+	 * @param args board and output, then "-steps n" to run for (default
+	 *        200), "-every n" steps per frame (default 1), "-delay ms" per
+	 *        GIF frame and "-inputs 0101" to hold the inputs at
+	 */
+	public static void main( String[] args ) throws Exception {
+		if ( args.length < 2 ) {
+			System.err.println( "usage: FrameCapture board output(.gif|dir) [-steps n] [-every n] [-delay ms] [-inputs bits]" );
+			System.exit( 1 );
+		}
+
+		SimulationState state = SimulationState.load( new File( args[0] ) );
+		File output = new File( args[1] );
+		int steps = 200;
+		int every = 1;
+		int delay = 100;
+		boolean[] inputs = null;
+
+		for ( int i = 2; i + 1 < args.length; i += 2 ) {
+			if ( args[i].equals( "-steps" ) ) {
+				steps = Integer.parseInt( args[i + 1] );
+			} else if ( args[i].equals( "-every" ) ) {
+				every = Integer.parseInt( args[i + 1] );
+			} else if ( args[i].equals( "-delay" ) ) {
+				delay = Integer.parseInt( args[i + 1] );
+			} else if ( args[i].equals( "-inputs" ) ) {
+				String bits = args[i + 1];
+				inputs = new boolean[bits.length( )];
+				for ( int b = 0; b < bits.length( ); b++ ) {
+					inputs[b] = bits.charAt( b ) == '1';
+				}
+			}
+		}
+
+		Simulator simulator = new Simulator( state );
+		simulator.setShortCircuitBuffer( new ShortCircuitBuffer( ) );
+		if ( inputs != null ) {
+			simulator.setInputs( inputs );
+		}
+
+		FrameCapture capture = new FrameCapture( state, output, every );
+		capture.setFrameDelay( delay );
+		capture.start( );
+
+		long start = System.nanoTime( );
+		capture.capture( 0 );
+		for ( int step = 1; step <= steps; step++ ) {
+			try {
+				simulator.step( );
+			} catch ( ShortCircuitException e ) {
+				// not thrown while collecting
+			}
+			capture.capture( step );
+		}
+		long simulated = System.nanoTime( ) - start;
+		capture.finish( );
+
+		System.out.println( capture.getNumCaptured( ) + " frames to " + output + ", simulation took "
+			+ simulated / 1000000 + "ms, encoding finished after " + ( System.nanoTime( ) - start ) / 1000000 + "ms" );
+	}
+}
@@ -83,7 +83,7 @@ public class StateRenderer {
 						
 						g.setColor( Color.black );
 						g.fillOval( dotX-1, dotY-1, dotSize+2, dotSize+2 );
-						g.setColor( new Color( net.getID() ) );
+						g.setColor( new Color( net.getColour() ) );
 						g.fillOval( dotX, dotY, dotSize, dotSize );
 					}
 					
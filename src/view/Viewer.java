@@ -14,9 +14,12 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 
+import analysis.DesignRuleChecker;
 import simulation.SimulationThread;
 import state.ConnectionNet;
+import state.ShortCircuitBuffer;
 import state.SimulationState;
 
 public class Viewer extends Canvas implements MouseListener,
@@ -35,7 +38,7 @@ MouseMotionListener {
 	
 	private Image offscreenBuffer;
 
-	private Point errorLocation = null;
+	private ArrayList<Point> errorLocations = new ArrayList<Point>( );
 
 	private ConnectionNet hoverNet = null;
 
@@ -52,8 +55,13 @@ MouseMotionListener {
 		this.setBackground( Color.BLACK );
 		File imageFile = new File( filename );
 		try {
-			this.state = new SimulationState( imageFile );
+			this.state = SimulationState.load( imageFile );
 			this.state.printDebug( );
+			
+			DesignRuleChecker checker = new DesignRuleChecker( this.state );
+			for ( DesignRuleChecker.Violation violation : checker.getViolations( ) ) {
+				System.err.println( violation );
+			}
 		} catch ( IOException e ) {
 			System.err.println( "Oh crap: " );
 			e.printStackTrace();
@@ -87,9 +95,9 @@ MouseMotionListener {
 		bufferG.setColor( Color.red );
 		bufferG.drawString( errorMessage, 10, 10 );
 		
-		if ( errorLocation != null ) {
-			int squareSize = stateRenderer.getSquareSize( );
-			int spacing    = stateRenderer.getSpacing( );
+		int squareSize = stateRenderer.getSquareSize( );
+		int spacing    = stateRenderer.getSpacing( );
+		for ( Point errorLocation : errorLocations ) {
 			int screenX = errorLocation.x * squareSize + errorLocation.x * spacing;
 			int screenY = errorLocation.y * squareSize + errorLocation.y * spacing;
 
@@ -137,18 +145,32 @@ MouseMotionListener {
 
 
 	public void showError( String string, Point location ) {
-		showError( string );
-		errorLocation = location;
+		ArrayList<Point> locations = new ArrayList<Point>( );
+		locations.add( location );
+		errorMessage = string;
+		errorLocations = locations;
+	}
+	
+	/**
+	 * Marks every short circuit of a step.
+	 */
+	public void showErrors( ShortCircuitBuffer shortCircuits ) {
+		ArrayList<Point> locations = new ArrayList<Point>( );
+		for ( int i = 0; i < shortCircuits.size( ); i++ ) {
+			locations.add( shortCircuits.getLocation( i ) );
+		}
+		errorMessage = shortCircuits.toString( );
+		errorLocations = locations;
 	}
 	
 	public void showError( String error ) {
 		errorMessage = error;
-		errorLocation = null;
+		errorLocations = new ArrayList<Point>( );
 	}
 	
 	public void clearError( ) {
 		errorMessage = "";
-		errorLocation = null;
+		errorLocations = new ArrayList<Point>( );
 	}
 
 	public void addInput( ) {
@@ -173,10 +195,16 @@ MouseMotionListener {
 		int y = evt.getY( );
 		
 		Point grid = screenToGrid( new Point( x, y ) );
+		ConnectionNet previousNet = this.hoverNet;
 		
 		this.hoverNet   = state.getNetConnection( grid );
 
 		this.hoverPoint = grid;
+		
+		if ( hoverNet != null || previousNet != null ) {
+			// the simulation may be parked, so it won't repaint for us
+			repaint( );
+		}
 	}
 
 	@Override
@@ -223,6 +251,7 @@ MouseMotionListener {
 			} else {
 				state.setCell( grid.x, grid.y, SimulationState.SINK );
 			}
+			simulation.stimulate( );
 		} else {
 			System.out.println( "No input at: " );
 			System.out.println( new Point( grid.x, grid.y ) );